@@ -0,0 +1,74 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Main class of <code>benchmarks.jar</code>: the JMH runner, with its usual command line, that
+ * adds the GC profiler (if not given with <code>-prof</code>) so allocation rates are reported
+ * with every result.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+        // noop.
+    }
+
+    public static void main(final String[] args) throws RunnerException, CommandLineOptionException,
+            IOException {
+
+        final CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        if (cmd.shouldList()) {
+            new Runner(cmd).list();
+            return;
+        }
+
+        final OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmd);
+        if (!hasGcProfiler(cmd)) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+
+    private static boolean hasGcProfiler(final CommandLineOptions cmd) {
+
+        for (final ProfilerConfig profiler : cmd.getProfilers()) {
+            if ("gc".equals(profiler.getKlass()) || GCProfiler.class.getName().equals(profiler.getKlass())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql.benchmarks;
+
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import com.obadaro.jinah.sql.ConcurrentSqlCloseableHandler;
+import com.obadaro.jinah.sql.SqlCloseableHandler;
+
+/**
+ * Registration from 1, 4 and 32 threads: a handler per thread versus one
+ * {@link ConcurrentSqlCloseableHandler}, with a stripe per thread, shared by all threads.
+ * <p>
+ * Only registration is timed: each invocation registers N Statements, and the handlers are
+ * closed after each iteration, outside of the measurement. An iteration is a single batch of
+ * {@value #BATCH} invocations per thread, which bounds the size of the registers; the score is
+ * the time of a batch, i.e. of <code>BATCH x N</code> registrations.
+ * </p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = ConcurrentRegistrationBenchmark.BATCH)
+@Measurement(iterations = 50, batchSize = ConcurrentRegistrationBenchmark.BATCH)
+@Fork(1)
+public class ConcurrentRegistrationBenchmark {
+
+    /**
+     * Invocations per iteration.
+     */
+    static final int BATCH = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        ConcurrentSqlCloseableHandler handler;
+
+        @Setup
+        public void setUp(final BenchmarkParams params) {
+
+            handler = new ConcurrentSqlCloseableHandler(params.getThreads());
+        }
+
+        @TearDown(Level.Iteration)
+        public void closeIteration() {
+
+            handler.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+
+        SqlCloseableHandler handler;
+
+        @Setup
+        public void setUp() {
+
+            handler = new SqlCloseableHandler();
+        }
+
+        @TearDown(Level.Iteration)
+        public void closeIteration() {
+
+            handler.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Statements {
+
+        /**
+         * Statements registered per invocation.
+         */
+        @Param({ "16", "64" })
+        int resources;
+
+        Statement[] statements;
+
+        @Setup
+        public void setUp() {
+
+            statements = StubDriver.statements(StubDriver.open(), resources);
+        }
+    }
+
+    private static void register(final SqlCloseableHandler handler, final Statement[] statements) {
+
+        for (int i = 0; i < statements.length; i++) {
+            handler.add(statements[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void perThreadSingle(final PerThread local, final Statements s) {
+
+        register(local.handler, s.statements);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void perThreadMulti(final PerThread local, final Statements s) {
+
+        register(local.handler, s.statements);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void perThread32(final PerThread local, final Statements s) {
+
+        register(local.handler, s.statements);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void sharedSingle(final Shared shared, final Statements s) {
+
+        register(shared.handler, s.statements);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sharedMulti(final Shared shared, final Statements s) {
+
+        register(shared.handler, s.statements);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void shared32(final Shared shared, final Statements s) {
+
+        register(shared.handler, s.statements);
+    }
+
+}
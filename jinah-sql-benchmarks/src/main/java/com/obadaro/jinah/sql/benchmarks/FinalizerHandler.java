@@ -0,0 +1,96 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql.benchmarks;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Baseline: the handler of jinah-sql 1.0, which kept its resources in HashSets and reclaimed the
+ * forgotten ones with a finalizer. Every instance, closed or not, is registered for finalization
+ * when allocated and needs a second GC cycle to be freed.
+ */
+public class FinalizerHandler {
+
+    private Set<Statement> statementRegister = new HashSet<Statement>(0);
+
+    private Set<ResultSet> resultSetRegister = new HashSet<ResultSet>(0);
+
+    @Override
+    @SuppressWarnings("deprecation")
+    protected void finalize() throws Throwable {
+
+        if ((statementRegister != null && statementRegister.size() > 0)
+                || (resultSetRegister != null && resultSetRegister.size() > 0)) {
+
+            final Logger logger = Logger.getLogger("global");
+            logger.warning("Cleaning your garbage. Somebody forgot to explicitly close statements/resultSets.");
+
+            close();
+        }
+
+        statementRegister = null;
+        resultSetRegister = null;
+
+        super.finalize();
+    }
+
+    public ResultSet add(final ResultSet rs) {
+
+        resultSetRegister.add(rs);
+        return rs;
+    }
+
+    public Statement add(final Statement st) {
+
+        statementRegister.add(st);
+        return st;
+    }
+
+    public void ignore(final Statement st) {
+
+        statementRegister.remove(st);
+    }
+
+    public void close() {
+
+        for (final ResultSet rs : resultSetRegister) {
+            try {
+                rs.close();
+            } catch (final Exception e) {
+                // noop.
+            }
+        }
+        resultSetRegister.clear();
+
+        for (final Statement st : statementRegister) {
+            try {
+                st.close();
+            } catch (final Exception e) {
+                // noop.
+            }
+        }
+        statementRegister.clear();
+    }
+
+}
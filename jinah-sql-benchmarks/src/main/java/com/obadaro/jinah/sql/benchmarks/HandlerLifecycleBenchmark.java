@@ -0,0 +1,108 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql.benchmarks;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obadaro.jinah.sql.SqlCloseableHandler;
+
+/**
+ * The hot path of a DAO method: <code>getService()</code>, one Statement and one ResultSet
+ * registered per resource, <code>close()</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandlerLifecycleBenchmark {
+
+    /**
+     * Statement/ResultSet pairs registered per handler.
+     */
+    @Param({ "1", "4", "16", "64" })
+    int resources;
+
+    Statement[] statements;
+
+    ResultSet[] resultSets;
+
+    @Setup
+    public void setUp() {
+
+        final Connection con = StubDriver.open();
+        statements = StubDriver.statements(con, resources);
+        resultSets = StubDriver.resultSets(statements);
+    }
+
+    @Benchmark
+    public SqlCloseableHandler getServiceAddClose() {
+
+        final SqlCloseableHandler handler = SqlCloseableHandler.getService();
+        for (int i = 0; i < resources; i++) {
+            handler.add(statements[i]);
+            handler.add(resultSets[i]);
+        }
+        handler.close();
+        return handler;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Djinah.sql.handler.pool=true")
+    public SqlCloseableHandler getServiceAddClosePooled() {
+
+        final SqlCloseableHandler handler = SqlCloseableHandler.getService();
+        for (int i = 0; i < resources; i++) {
+            handler.add(statements[i]);
+            handler.add(resultSets[i]);
+        }
+        handler.close();
+        return handler;
+    }
+
+    @Benchmark
+    public FinalizerHandler finalizerBaseline() {
+
+        final FinalizerHandler handler = new FinalizerHandler();
+        for (int i = 0; i < resources; i++) {
+            handler.add(statements[i]);
+            handler.add(resultSets[i]);
+        }
+        handler.close();
+        return handler;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql.benchmarks;
+
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obadaro.jinah.sql.SqlCloseableHandler;
+
+/**
+ * <code>ignore(...)</code> of a Statement, registered again right after, on a register holding
+ * <code>size</code> Statements. Every entry of the register is compared, since duplicates are
+ * removed too; ignoring the newest shifts nothing (best case), ignoring the oldest shifts the whole
+ * register (worst case). The HashSet of the 1.0 handler is the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IgnoreBenchmark {
+
+    @Param({ "16", "256", "4096" })
+    int size;
+
+    Statement[] statements;
+
+    SqlCloseableHandler handler;
+
+    FinalizerHandler baseline;
+
+    /**
+     * Next Statement to ignore in {@link #ignoreOldest()}: ignoring and adding it back makes the
+     * following one the oldest.
+     */
+    int oldest;
+
+    @Setup
+    public void setUp() {
+
+        statements = StubDriver.statements(StubDriver.open(), size);
+        handler = new SqlCloseableHandler();
+        baseline = new FinalizerHandler();
+        for (final Statement st : statements) {
+            handler.add(st);
+            baseline.add(st);
+        }
+        oldest = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        handler.close();
+        baseline.close();
+    }
+
+    @Benchmark
+    public Statement ignoreNewest() {
+
+        final Statement st = statements[size - 1];
+        handler.ignore(st);
+        return handler.add(st);
+    }
+
+    @Benchmark
+    public Statement ignoreOldest() {
+
+        final Statement st = statements[oldest];
+        oldest = oldest + 1 == size ? 0 : oldest + 1;
+        handler.ignore(st);
+        return handler.add(st);
+    }
+
+    @Benchmark
+    public Statement finalizerBaseline() {
+
+        final Statement st = statements[oldest];
+        oldest = oldest + 1 == size ? 0 : oldest + 1;
+        baseline.ignore(st);
+        return baseline.add(st);
+    }
+
+}
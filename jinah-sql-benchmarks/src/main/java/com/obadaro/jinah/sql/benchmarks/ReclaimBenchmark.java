@@ -0,0 +1,106 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql.benchmarks;
+
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.obadaro.jinah.sql.SqlCloseableHandler;
+
+/**
+ * GC cost of reclaiming handlers: the {@link java.lang.ref.Cleaner} of {@link SqlCloseableHandler}
+ * versus the finalizer of {@link FinalizerHandler}, for handlers that are closed and for handlers
+ * that are abandoned with a registered Statement (a leak, closed by the reclaimer).
+ * <p>
+ * Read the <code>gc.count</code>, <code>gc.time</code> and <code>gc.alloc.rate.norm</code> results
+ * of the GC profiler along with the time per operation. The heap is fixed so the runs are
+ * comparable; the leak warnings are silenced.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms512m", "-Xmx512m" })
+@State(Scope.Thread)
+public class ReclaimBenchmark {
+
+    /**
+     * Kept so the level is not lost with the logger.
+     */
+    private static final Logger GLOBAL = Logger.getLogger("global");
+
+    Statement statement;
+
+    @Setup
+    public void setUp() {
+
+        GLOBAL.setLevel(Level.OFF);
+        statement = StubDriver.statements(StubDriver.open(), 1)[0];
+    }
+
+    @Benchmark
+    public SqlCloseableHandler cleanerClosed() {
+
+        final SqlCloseableHandler handler = new SqlCloseableHandler();
+        handler.add(statement);
+        handler.close();
+        return handler;
+    }
+
+    @Benchmark
+    public SqlCloseableHandler cleanerAbandoned() {
+
+        final SqlCloseableHandler handler = new SqlCloseableHandler();
+        handler.add(statement);
+        return handler;
+    }
+
+    @Benchmark
+    public FinalizerHandler finalizerClosed() {
+
+        final FinalizerHandler handler = new FinalizerHandler();
+        handler.add(statement);
+        handler.close();
+        return handler;
+    }
+
+    @Benchmark
+    public FinalizerHandler finalizerAbandoned() {
+
+        final FinalizerHandler handler = new FinalizerHandler();
+        handler.add(statement);
+        return handler;
+    }
+
+}
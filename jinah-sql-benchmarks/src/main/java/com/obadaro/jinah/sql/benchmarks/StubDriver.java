@@ -0,0 +1,225 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * In-process JDBC driver whose objects do nothing: closing is a flag, queries return empty
+ * ResultSets. Lets the benchmarks measure the handler alone.
+ * <p>
+ * Registered in {@link DriverManager} for <code>jdbc:jinah-stub:</code>; the benchmarks use
+ * {@link #open()} directly. Statements and ResultSets can be closed and registered again, so they
+ * are created once per benchmark trial and reused.
+ * </p>
+ */
+public final class StubDriver implements Driver {
+
+    static final String URL_PREFIX = "jdbc:jinah-stub:";
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch (final SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @return A new stub Connection.
+     */
+    public static Connection open() {
+
+        return proxy(Connection.class, new Stub(null));
+    }
+
+    /**
+     * @param con
+     * @param count
+     * @return Stub Statements of the Connection.
+     */
+    public static Statement[] statements(final Connection con, final int count) {
+
+        final Statement[] statements = new Statement[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                statements[i] = con.createStatement();
+            }
+        } catch (final SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return statements;
+    }
+
+    /**
+     * @param statements
+     * @return A stub ResultSet of each Statement.
+     */
+    public static ResultSet[] resultSets(final Statement[] statements) {
+
+        final ResultSet[] resultSets = new ResultSet[statements.length];
+        try {
+            for (int i = 0; i < statements.length; i++) {
+                resultSets[i] = statements[i].executeQuery("select 1");
+            }
+        } catch (final SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return resultSets;
+    }
+
+    @Override
+    public Connection connect(final String url, final Properties info) throws SQLException {
+
+        return acceptsURL(url) ? open() : null;
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) throws SQLException {
+
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) throws SQLException {
+
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static <T> T proxy(final Class<T> type, final Stub stub) {
+
+        return type.cast(Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[] { type }, stub));
+    }
+
+    /**
+     * Behaviour of a stub Connection, Statement or ResultSet.
+     */
+    private static final class Stub implements InvocationHandler {
+
+        /**
+         * The Connection of a Statement, the Statement of a ResultSet.
+         */
+        private final Object parent;
+
+        private boolean closed;
+
+        Stub(final Object parent) {
+
+            this.parent = parent;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+
+            switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return method.getDeclaringClass().getSimpleName() + "@"
+                        + Integer.toHexString(System.identityHashCode(proxy));
+            case "close":
+                closed = true;
+                return null;
+            case "isClosed":
+                return closed;
+            case "createStatement":
+                return proxy(Statement.class, new Stub(proxy));
+            case "prepareStatement":
+                return proxy(PreparedStatement.class, new Stub(proxy));
+            case "executeQuery":
+                return proxy(ResultSet.class, new Stub(proxy));
+            case "getConnection":
+            case "getStatement":
+                return parent;
+            default:
+                return defaultValue(method.getReturnType());
+            }
+        }
+
+        private static Object defaultValue(final Class<?> type) {
+
+            if (!type.isPrimitive() || type == void.class) {
+                return null;
+            }
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            if (type == double.class) {
+                return 0d;
+            }
+            if (type == float.class) {
+                return 0f;
+            }
+            if (type == short.class) {
+                return (short) 0;
+            }
+            if (type == byte.class) {
+                return (byte) 0;
+            }
+            if (type == char.class) {
+                return (char) 0;
+            }
+            return 0;
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.obadaro.jinah.sql.SqlCloseableHandler.Resources;
+
+/**
+ * Bounded background executor behind {@link SqlCloseableHandler#closeAsync()}.
+ * <p>
+ * At most <code>jinah.sql.asyncClose.threads</code> daemon threads (default 2) close detached
+ * resources, with at most <code>jinah.sql.asyncClose.queue</code> pending batches (default 1024).
+ * When the queue is full the calling thread closes its own batch, so a slow database slows the
+ * callers down instead of piling up unbounded pending closes.
+ * </p>
+ */
+final class AsyncCloser {
+
+    private static final int THREADS = Integer.getInteger("jinah.sql.asyncClose.threads", 2);
+
+    private static final int QUEUE = Integer.getInteger("jinah.sql.asyncClose.queue", 1024);
+
+    private AsyncCloser() {
+        // noop.
+    }
+
+    /**
+     * Lazy holder: the executor is only created on the first asynchronous close.
+     */
+    private static final class Holder {
+
+        static final ThreadPoolExecutor EXECUTOR = newExecutor();
+
+        private static ThreadPoolExecutor newExecutor() {
+
+            final AtomicInteger count = new AtomicInteger();
+            final ThreadFactory factory = new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable r) {
+
+                    final Thread t = new Thread(r, "jinah-sql-closer-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUEUE), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    /**
+     * Closes the detached resources in the background: all ResultSets first, then all Statements,
+     * then all Connections.
+     *
+     * @param batch
+     *            Detached resources; <code>null</code> entries are skipped.
+     */
+    static void close(final Resources... batch) {
+
+        boolean empty = true;
+        for (final Resources r : batch) {
+            if (r != null) {
+                empty = false;
+                break;
+            }
+        }
+        if (empty) {
+            return;
+        }
+
+        Holder.EXECUTOR.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                for (final Resources r : batch) {
+                    if (r != null) {
+                        r.closeResultSets();
+                    }
+                }
+                for (final Resources r : batch) {
+                    if (r != null) {
+                        r.closeStatements();
+                    }
+                }
+                for (final Resources r : batch) {
+                    if (r != null) {
+                        r.closeConnections();
+                        r.failures.flush();
+                    }
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+/**
+ * Failure of a batch flushed by {@link BatchWriter}. Offsets count the rows added to the writer,
+ * starting at 0.
+ */
+public class BatchWriteException extends JinahSqlException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long firstRow;
+
+    private final int rowCount;
+
+    private final long failedRow;
+
+    /**
+     * @param message
+     * @param cause
+     * @param firstRow
+     *            Offset of the first row of the failed batch.
+     * @param rowCount
+     *            Number of rows of the failed batch.
+     * @param failedRow
+     *            Offset of the row reported as failed by the driver, or <code>-1</code>.
+     */
+    public BatchWriteException(final String message, final Throwable cause, final long firstRow, final int rowCount,
+            final long failedRow) {
+
+        super(message, cause);
+        this.firstRow = firstRow;
+        this.rowCount = rowCount;
+        this.failedRow = failedRow;
+    }
+
+    /**
+     * @return Offset of the first row of the failed batch.
+     */
+    public long getFirstRow() {
+
+        return firstRow;
+    }
+
+    /**
+     * @return Number of rows of the failed batch.
+     */
+    public int getRowCount() {
+
+        return rowCount;
+    }
+
+    /**
+     * @return Offset of the last row of the failed batch.
+     */
+    public long getLastRow() {
+
+        return firstRow + rowCount - 1;
+    }
+
+    /**
+     * @return Offset of the row reported as failed by the driver, or <code>-1</code> if unknown.
+     */
+    public long getFailedRow() {
+
+        return failedRow;
+    }
+
+}
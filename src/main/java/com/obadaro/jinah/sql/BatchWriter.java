@@ -0,0 +1,356 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import com.obadaro.jinah.common.util.Preconditions;
+
+/**
+ * Buffers parameter rows of a DML statement and executes them in batches.
+ * <p>
+ * The batch size is tuned from the measured latency of each batch: it climbs in the direction that
+ * improves the throughput (rows per second) and shrinks whenever a batch takes longer than the
+ * target latency. Only full batches are measured.
+ * </p>
+ * <p>
+ * The writer prepares its own PreparedStatement, registered in the handler and closed through it
+ * when the writer is closed, or when the handler is closed. It is not shared with
+ * {@link SqlCloseableHandler#prepare(Connection, String)} nor with other writers of the same SQL,
+ * whose batches would otherwise mix.
+ * </p>
+ * <p>
+ * A <code>null</code> parameter is bound with <code>setNull</code> and the SQL type reported by
+ * the statement's {@link ParameterMetaData}, read once at the first <code>null</code>; drivers that
+ * can not report it get {@link Types#NULL}.
+ * </p>
+ *
+ * <pre>
+ * try (BatchWriter writer = new BatchWriter(handler, con, &quot;insert into T (A, B) values (?, ?)&quot;)) {
+ *     for (...) {
+ *         writer.add(a, b);
+ *     }
+ * }
+ * </pre>
+ */
+public class BatchWriter implements AutoCloseable {
+
+    /**
+     * Growth (or shrink) factor of each step.
+     */
+    private static final double STEP = 1.5;
+
+    private final SqlCloseableHandler handler;
+
+    private final PreparedStatement ps;
+
+    private final int minBatchSize;
+
+    private final int maxBatchSize;
+
+    private final long targetNanos;
+
+    private Object[][] buffer;
+
+    private int buffered;
+
+    private int batchSize;
+
+    /**
+     * Direction of the last step: 1 growing, -1 shrinking.
+     */
+    private int direction = 1;
+
+    private double lastThroughput;
+
+    private long rowsAdded;
+
+    private long rowsWritten;
+
+    private int batches;
+
+    private boolean closed;
+
+    /**
+     * SQL types of the parameters, to bind nulls; read at the first null.
+     */
+    private int[] nullTypes;
+
+    /**
+     * Constructor. Batches between 16 and 10000 rows, targeting 200 ms per batch.
+     *
+     * @param handler
+     * @param con
+     * @param sql
+     */
+    public BatchWriter(final SqlCloseableHandler handler, final Connection con, final String sql) {
+
+        this(handler, con, sql, 16, 10000, 200);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param handler
+     * @param con
+     * @param sql
+     * @param minBatchSize
+     * @param maxBatchSize
+     * @param targetMillis
+     *            Maximum latency wanted for a batch.
+     */
+    public BatchWriter(final SqlCloseableHandler handler, final Connection con, final String sql,
+            final int minBatchSize, final int maxBatchSize, final int targetMillis) {
+
+        Preconditions.checkArgument(handler != null, "handler");
+        Preconditions.checkArgument(minBatchSize > 0 && minBatchSize <= maxBatchSize, "minBatchSize");
+        Preconditions.checkArgument(targetMillis > 0, "targetMillis");
+
+        this.handler = handler;
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetNanos = targetMillis * 1000000L;
+        this.batchSize = minBatchSize;
+        this.buffer = new Object[minBatchSize][];
+        this.ps = prepare(handler, con, sql);
+    }
+
+    private static PreparedStatement prepare(final SqlCloseableHandler handler, final Connection con,
+            final String sql) {
+
+        Preconditions.checkArgument(con != null, "con");
+        Preconditions.checkArgument(sql != null, "sql");
+
+        final PreparedStatement ps;
+        try {
+            ps = con.prepareStatement(sql);
+        } catch (final SQLException e) {
+            throw new JinahSqlException("I can't prepare the statement.", e);
+        }
+        handler.add(ps);
+        return ps;
+    }
+
+    /**
+     * Buffers a row, executing the batch if it is full.
+     *
+     * @param params
+     *            Parameters of the row, in order.
+     */
+    public void add(final Object... params) {
+
+        if (closed) {
+            throw new IllegalStateException("BatchWriter closed.");
+        }
+
+        if (buffered == buffer.length) {
+            final Object[][] grown = new Object[Math.min(maxBatchSize, buffer.length * 2)][];
+            System.arraycopy(buffer, 0, grown, 0, buffered);
+            buffer = grown;
+        }
+        buffer[buffered++] = params;
+        rowsAdded++;
+
+        if (buffered >= batchSize) {
+            execute(true);
+        }
+    }
+
+    /**
+     * Executes the buffered rows.
+     */
+    public void flush() {
+
+        if (buffered > 0) {
+            execute(false);
+        }
+    }
+
+    private void execute(final boolean measure) {
+
+        final int count = buffered;
+        final long firstRow = rowsAdded - count;
+        buffered = 0;
+
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < count; i++) {
+                final Object[] params = buffer[i];
+                buffer[i] = null;
+                for (int p = 0; p < params.length; p++) {
+                    if (params[p] == null) {
+                        ps.setNull(p + 1, nullType(p + 1));
+                    } else {
+                        ps.setObject(p + 1, params[p]);
+                    }
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+
+        } catch (final BatchUpdateException e) {
+            clearBatch(count);
+            throw new BatchWriteException("Batch failed: rows " + firstRow + " to " + (firstRow + count - 1) + ".",
+                    e, firstRow, count, failedRow(e.getUpdateCounts(), firstRow, count));
+
+        } catch (final SQLException e) {
+            clearBatch(count);
+            throw new BatchWriteException("Batch failed: rows " + firstRow + " to " + (firstRow + count - 1) + ".",
+                    e, firstRow, count, -1);
+        }
+
+        rowsWritten += count;
+        batches++;
+        if (measure) {
+            adapt(count, System.nanoTime() - start);
+        }
+    }
+
+    private int nullType(final int parameter) {
+
+        if (nullTypes == null) {
+            nullTypes = parameterTypes(ps);
+        }
+        return parameter <= nullTypes.length ? nullTypes[parameter - 1] : Types.NULL;
+    }
+
+    /**
+     * @return SQL types of the parameters, {@link Types#NULL} for the ones the driver does not
+     *         report.
+     */
+    private static int[] parameterTypes(final PreparedStatement ps) {
+
+        final ParameterMetaData md;
+        final int count;
+        try {
+            md = ps.getParameterMetaData();
+            count = md == null ? 0 : md.getParameterCount();
+        } catch (final SQLException e) {
+            return new int[0];
+        }
+
+        final int[] types = new int[count];
+        for (int i = 0; i < count; i++) {
+            try {
+                types[i] = md.getParameterType(i + 1);
+            } catch (final SQLException e) {
+                types[i] = Types.NULL;
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Locates the failed row from the update counts of a BatchUpdateException: either the first
+     * count marked <code>EXECUTE_FAILED</code>, or the row after the last count when the driver
+     * stopped at the failure.
+     */
+    private static long failedRow(final int[] counts, final long firstRow, final int count) {
+
+        if (counts == null) {
+            return -1;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.EXECUTE_FAILED) {
+                return firstRow + i;
+            }
+        }
+        return counts.length < count ? firstRow + counts.length : -1;
+    }
+
+    private void clearBatch(final int count) {
+
+        for (int i = 0; i < count; i++) {
+            buffer[i] = null;
+        }
+        try {
+            ps.clearBatch();
+        } catch (final SQLException e) {
+            // noop.
+        }
+    }
+
+    /**
+     * Hill climbing on the throughput, bounded by the target latency.
+     */
+    private void adapt(final int rows, final long nanos) {
+
+        final double throughput = rows / (double) Math.max(1L, nanos);
+
+        if (nanos > targetNanos) {
+            direction = -1;
+        } else if (throughput < lastThroughput) {
+            direction = -direction;
+        }
+        lastThroughput = throughput;
+
+        final double next = direction > 0 ? batchSize * STEP : batchSize / STEP;
+        batchSize = (int) Math.max(minBatchSize, Math.min(maxBatchSize, next));
+    }
+
+    /**
+     * @return The current batch size.
+     */
+    public int getBatchSize() {
+
+        return batchSize;
+    }
+
+    /**
+     * @return Rows executed successfully.
+     */
+    public long getRowsWritten() {
+
+        return rowsWritten;
+    }
+
+    /**
+     * @return Batches executed successfully.
+     */
+    public int getBatches() {
+
+        return batches;
+    }
+
+    /**
+     * Executes the buffered rows and closes the PreparedStatement through the handler. The
+     * statement is closed even if the last batch fails.
+     */
+    @Override
+    public void close() {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            handler.close(ps);
+        }
+    }
+
+}
@@ -0,0 +1,450 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import com.obadaro.jinah.common.util.Preconditions;
+
+/**
+ * Loads rows in parallel over several connections.
+ * <p>
+ * The caller thread splits the input into partitions and hands them to the workers through a
+ * bounded queue, so a slow database holds the reading of the input. Each worker has its own
+ * {@link SqlCloseableHandler} and connection, and writes each partition with a {@link BatchWriter}
+ * in its own transaction. A partition that fails with a retryable {@link SqlErrorCategory}
+ * (deadlock, lost connection) is rolled back and retried on a fresh connection, after a random
+ * backoff as in {@link RetryExecutor}; any other failure, or a retryable one whose retries are
+ * exhausted, aborts the load: the input is no longer read, the workers stop after their current
+ * partition and every handler is closed before the failure is thrown. Partitions committed before
+ * the failure stay committed.
+ * </p>
+ * <p>
+ * The connections are given back with the auto-commit mode they were obtained with.
+ * </p>
+ *
+ * <pre>
+ * BulkLoader.Result result = new BulkLoader(dataSource, &quot;insert into T (A, B) values (?, ?)&quot;, 4, 5000, 2)
+ *         .load(items.iterator(), item -&gt; new Object[] { item.getA(), item.getB() });
+ * </pre>
+ */
+public class BulkLoader {
+
+    /**
+     * Summary of a load.
+     */
+    public static final class Result {
+
+        private final long rows;
+
+        private final int partitions;
+
+        private final int retries;
+
+        private final long elapsedNanos;
+
+        Result(final long rows, final int partitions, final int retries, final long elapsedNanos) {
+
+            this.rows = rows;
+            this.partitions = partitions;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return Rows committed.
+         */
+        public long getRows() {
+
+            return rows;
+        }
+
+        /**
+         * @return Partitions committed.
+         */
+        public int getPartitions() {
+
+            return partitions;
+        }
+
+        /**
+         * @return Partition attempts that failed and were retried.
+         */
+        public int getRetries() {
+
+            return retries;
+        }
+
+        /**
+         * @return Duration of the load, in milliseconds.
+         */
+        public long getElapsedMillis() {
+
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * @return Rows committed per second.
+         */
+        public double getRowsPerSecond() {
+
+            return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+
+            return rows + " rows in " + partitions + " partitions, " + retries + " retries, " + getElapsedMillis()
+                    + " ms (" + Math.round(getRowsPerSecond()) + " rows/s)";
+        }
+    }
+
+    private static final Object[][] END = new Object[0][];
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private static final long RETRY_BASE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50L);
+
+    private static final long RETRY_MAX_DELAY_NANOS = TimeUnit.SECONDS.toNanos(2L);
+
+    private final DataSource dataSource;
+
+    private final String sql;
+
+    private final int connections;
+
+    private final int partitionSize;
+
+    private final int maxRetries;
+
+    /**
+     * Constructor.
+     *
+     * @param dataSource
+     *            Source of the connections.
+     * @param sql
+     *            DML executed for each row.
+     * @param connections
+     *            Number of workers, each with its own connection.
+     * @param partitionSize
+     *            Rows per partition (and per transaction).
+     * @param maxRetries
+     *            Retries of a partition that failed with a retryable {@link SqlErrorCategory}
+     *            before the load is aborted.
+     */
+    public BulkLoader(final DataSource dataSource, final String sql, final int connections,
+            final int partitionSize, final int maxRetries) {
+
+        Preconditions.checkArgument(dataSource != null, "dataSource");
+        Preconditions.checkArgument(sql != null, "sql");
+        Preconditions.checkArgument(connections > 0, "connections");
+        Preconditions.checkArgument(partitionSize > 0, "partitionSize");
+        Preconditions.checkArgument(maxRetries >= 0, "maxRetries");
+
+        this.dataSource = dataSource;
+        this.sql = sql;
+        this.connections = connections;
+        this.partitionSize = partitionSize;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Loads the rows of a Stream, closing it at the end.
+     *
+     * @param rows
+     * @param parameters
+     *            Converts a row to the parameters of the DML, in order.
+     * @return
+     */
+    public <T> Result load(final Stream<T> rows, final Function<? super T, Object[]> parameters) {
+
+        try {
+            return load(rows.iterator(), parameters);
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Loads the rows of an Iterator.
+     *
+     * @param rows
+     * @param parameters
+     *            Converts a row to the parameters of the DML, in order.
+     * @return
+     */
+    public <T> Result load(final Iterator<T> rows, final Function<? super T, Object[]> parameters) {
+
+        final long start = System.nanoTime();
+        final Load load = new Load();
+
+        final ExecutorService workers = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+
+                final Thread t = new Thread(r, "jinah-sql-bulk-" + THREADS.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        work(load);
+                    }
+                });
+            }
+
+            try {
+                Object[][] partition = new Object[partitionSize][];
+                int count = 0;
+                while (!load.aborted() && rows.hasNext()) {
+                    partition[count++] = parameters.apply(rows.next());
+                    if (count == partitionSize) {
+                        load.put(partition);
+                        partition = new Object[partitionSize][];
+                        count = 0;
+                    }
+                }
+                if (count > 0) {
+                    final Object[][] last = new Object[count][];
+                    System.arraycopy(partition, 0, last, 0, count);
+                    load.put(last);
+                }
+            } catch (final RuntimeException e) {
+                load.fail(e);
+            } catch (final Error e) {
+                load.fail(e);
+            }
+
+            for (int i = 0; i < connections; i++) {
+                load.put(END);
+            }
+
+        } finally {
+            workers.shutdown();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (workers.awaitTermination(1L, TimeUnit.SECONDS)) {
+                        break;
+                    }
+                } catch (final InterruptedException e) {
+                    // the workers must leave their connections before returning.
+                    interrupted = true;
+                    load.fail(e);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final Throwable failure = load.failure.get();
+        if (failure != null) {
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure instanceof JinahSqlException) {
+                throw (JinahSqlException) failure;
+            }
+            throw new JinahSqlException("Bulk load aborted after " + load.rows.get() + " rows.", failure);
+        }
+
+        return new Result(load.rows.get(), load.partitions.get(), load.retries.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * Worker loop: one handler, connection and writer at a time, replaced after a failure.
+     */
+    private void work(final Load load) {
+
+        SqlCloseableHandler handler = null;
+        Connection con = null;
+        boolean autoCommit = true;
+        BatchWriter writer = null;
+        try {
+            Object[][] partition;
+            while ((partition = load.take()) != END) {
+                for (int attempt = 0;; attempt++) {
+                    try {
+                        if (con == null) {
+                            handler = new SqlCloseableHandler();
+                            final Connection c = handler.add(dataSource.getConnection());
+                            autoCommit = c.getAutoCommit();
+                            c.setAutoCommit(false);
+                            con = c;
+                            writer = new BatchWriter(handler, con, sql);
+                        }
+                        for (final Object[] params : partition) {
+                            writer.add(params);
+                        }
+                        writer.flush();
+                        con.commit();
+                        load.rows.addAndGet(partition.length);
+                        load.partitions.incrementAndGet();
+                        break;
+
+                    } catch (final SQLException e) {
+                        release(handler, con, autoCommit);
+                        handler = null;
+                        con = null;
+                        writer = null;
+                        if (!retry(load, attempt, e)) {
+                            return;
+                        }
+                    } catch (final RuntimeException e) {
+                        release(handler, con, autoCommit);
+                        handler = null;
+                        con = null;
+                        writer = null;
+                        if (!retry(load, attempt, e)) {
+                            return;
+                        }
+                    }
+                }
+            }
+        } catch (final Throwable e) {
+            load.fail(e);
+        } finally {
+            release(handler, con, autoCommit);
+        }
+    }
+
+    /**
+     * Decides whether a failed partition is retried, waiting before the retry.
+     *
+     * @return <code>false</code> if the load is aborted.
+     */
+    private boolean retry(final Load load, final int attempt, final Exception e) {
+
+        if (load.aborted()) {
+            return false;
+        }
+        if (attempt >= maxRetries || !SqlErrorCategory.of(e).isRetryable()) {
+            load.fail(e);
+            return false;
+        }
+        RetryExecutor.backoff(attempt + 1, RETRY_BASE_DELAY_NANOS, RETRY_MAX_DELAY_NANOS, e);
+        load.retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Rolls back what was not committed, restores the auto-commit mode and closes the connection,
+     * giving it back to its pool.
+     */
+    private static void release(final SqlCloseableHandler handler, final Connection con, final boolean autoCommit) {
+
+        if (con != null) {
+            try {
+                con.rollback();
+            } catch (final SQLException e) {
+                // noop.
+            }
+            try {
+                con.setAutoCommit(autoCommit);
+            } catch (final SQLException e) {
+                // noop: closed anyway.
+            }
+        }
+        if (handler != null) {
+            handler.close();
+        }
+    }
+
+    /**
+     * State shared by the caller and the workers of a load.
+     */
+    private final class Load {
+
+        final ArrayBlockingQueue<Object[][]> queue = new ArrayBlockingQueue<Object[][]>(connections * 2);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        final AtomicLong rows = new AtomicLong();
+
+        final AtomicInteger partitions = new AtomicInteger();
+
+        final AtomicInteger retries = new AtomicInteger();
+
+        boolean aborted() {
+
+            return failure.get() != null;
+        }
+
+        void fail(final Throwable e) {
+
+            failure.compareAndSet(null, e);
+        }
+
+        /**
+         * Waits for room in the queue; gives up if the load was aborted.
+         */
+        void put(final Object[][] partition) {
+
+            try {
+                while (!aborted()) {
+                    if (queue.offer(partition, 100L, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+
+        /**
+         * @return The next partition, or END if the input is over or the load was aborted.
+         */
+        Object[][] take() throws InterruptedException {
+
+            while (!aborted()) {
+                final Object[][] partition = queue.poll(100L, TimeUnit.MILLISECONDS);
+                if (partition != null) {
+                    return partition;
+                }
+            }
+            return END;
+        }
+    }
+
+}
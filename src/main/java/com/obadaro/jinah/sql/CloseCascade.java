@@ -0,0 +1,136 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.ResultSet;
+
+/**
+ * Learns, per driver ResultSet class, whether <code>Statement.close()</code> also closes the
+ * ResultSets of the Statement, as the JDBC specification requires.
+ * <p>
+ * Until a class is known to cascade, every ResultSet left to its Statement is checked with
+ * <code>isClosed()</code> after the Statement is closed, and closed explicitly if still open, in
+ * which case the class is marked as not cascading and its ResultSets are always closed
+ * explicitly from then on, even if other instances were seen cascading. Once a class is seen
+ * cascading (and never not cascading), the check is skipped.
+ * </p>
+ * <p>
+ * Only a ResultSet open before its Statement was closed tells whether the close cascaded: while a
+ * class is unknown, the ResultSets already closed (e.g. by the caller) are dropped before the
+ * Statement is closed, see {@link #closedBeforeOwner(Object)}.
+ * </p>
+ */
+final class CloseCascade {
+
+    private static final int UNKNOWN = 0;
+
+    private static final int CASCADES = 1;
+
+    private static final int NO_CASCADE = 2;
+
+    /**
+     * Holder of the learned state of a class. ClassValue does not keep driver classes alive.
+     */
+    private static final class State {
+
+        volatile int value = UNKNOWN;
+    }
+
+    private static final ClassValue<State> STATES = new ClassValue<State>() {
+
+        @Override
+        protected State computeValue(final Class<?> type) {
+
+            return new State();
+        }
+    };
+
+    private CloseCascade() {
+        // noop.
+    }
+
+    /**
+     * @param resource
+     * @return <code>false</code> if the resource must be closed explicitly even if its owner is
+     *         closed.
+     */
+    static boolean expected(final Object resource) {
+
+        return resource instanceof ResultSet && STATES.get(resource.getClass()).value != NO_CASCADE;
+    }
+
+    /**
+     * Called before the owner of the resource is closed, for a resource left to it.
+     *
+     * @param resource
+     * @return <code>true</code> if the class of the resource is still unknown and the resource is
+     *         already closed: it must be dropped, not passed to
+     *         {@link #closeIfNotCascaded(Object, CloseFailures)}, as its state after the close of
+     *         the owner would not tell whether the driver cascades.
+     */
+    static boolean closedBeforeOwner(final Object resource) {
+
+        if (!(resource instanceof ResultSet) || STATES.get(resource.getClass()).value != UNKNOWN) {
+            return false;
+        }
+
+        try {
+            return ((ResultSet) resource).isClosed();
+        } catch (final Exception | AbstractMethodError e) {
+            // pre JDBC 4 driver or broken ResultSet: settled after the owner.
+            return false;
+        }
+    }
+
+    /**
+     * Called after the owner of the resource was closed: closes the resource if the driver did not
+     * do it. The resource must have been open before the owner was closed.
+     *
+     * @param resource
+     * @param failures
+     *            Where a failure of the close is recorded.
+     */
+    static void closeIfNotCascaded(final Object resource, final CloseFailures failures) {
+
+        final State state = STATES.get(resource.getClass());
+        if (state.value == CASCADES) {
+            return;
+        }
+
+        boolean closed;
+        try {
+            closed = ((ResultSet) resource).isClosed();
+        } catch (final Exception | AbstractMethodError e) {
+            // pre JDBC 4 driver or broken ResultSet.
+            closed = false;
+        }
+
+        if (closed) {
+            if (state.value == UNKNOWN) {
+                state.value = CASCADES;
+            }
+            return;
+        }
+
+        state.value = NO_CASCADE;
+        CloseFailures.close(failures, resource);
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accounting of the closes done by the handlers.
+ * <p>
+ * Each handler counts its own close attempts and failures, without synchronization, and adds them
+ * to the process-wide totals read by {@link #getAttempted()} and {@link #getFailed()} once per
+ * <code>close()</code>. A failure rate that grows usually means a driver is not freeing server-side
+ * cursors, long before the database reaches its cursor limit.
+ * </p>
+ * <p>
+ * The failures themselves are only kept while a handler runs
+ * {@link SqlCloseableHandler#closeAndReport()}.
+ * </p>
+ */
+public final class CloseFailures {
+
+    private static final LongAdder ATTEMPTED = new LongAdder();
+
+    private static final LongAdder FAILED = new LongAdder();
+
+    /**
+     * Counts not yet added to the process-wide totals.
+     */
+    private int pendingAttempted;
+
+    private int pendingFailed;
+
+    /**
+     * Counts since the handler was created.
+     */
+    private long attempted;
+
+    private long failed;
+
+    private List<Exception> collected;
+
+    private boolean collecting;
+
+    CloseFailures() {
+        // noop.
+    }
+
+    /**
+     * Closes the resource, recording the outcome.
+     *
+     * @param failures
+     *            Where to record; if <code>null</code>, only the process-wide totals are updated.
+     * @param resource
+     *            An {@link AutoCloseable}.
+     */
+    static void close(final CloseFailures failures, final Object resource) {
+
+        Exception failure = null;
+        try {
+            ((AutoCloseable) resource).close();
+        } catch (final Exception e) {
+            failure = e;
+        }
+
+        if (failures != null) {
+            failures.record(failure);
+        } else {
+            ATTEMPTED.increment();
+            if (failure != null) {
+                FAILED.increment();
+            }
+        }
+    }
+
+    /**
+     * @param failure
+     *            Failure of a close attempt, or <code>null</code> if it succeeded.
+     */
+    void record(final Exception failure) {
+
+        pendingAttempted++;
+        attempted++;
+        if (failure != null) {
+            pendingFailed++;
+            failed++;
+            if (collecting) {
+                if (collected == null) {
+                    collected = new ArrayList<Exception>(4);
+                }
+                collected.add(failure);
+            }
+        }
+    }
+
+    /**
+     * Adds the counts of the last closes to the process-wide totals.
+     */
+    void flush() {
+
+        if (pendingAttempted > 0) {
+            ATTEMPTED.add(pendingAttempted);
+            pendingAttempted = 0;
+        }
+        if (pendingFailed > 0) {
+            FAILED.add(pendingFailed);
+            pendingFailed = 0;
+        }
+    }
+
+    /**
+     * Adds the counts and the kept failures of this instance, used for closes done outside of a
+     * handler, to the ones of the handler.
+     *
+     * @param target
+     *            Accounting of the handler; if <code>null</code>, the counts go to the process-wide
+     *            totals.
+     */
+    void addTo(final CloseFailures target) {
+
+        if (target == null) {
+            flush();
+            return;
+        }
+
+        target.pendingAttempted += pendingAttempted;
+        target.pendingFailed += pendingFailed;
+        target.attempted += attempted;
+        target.failed += failed;
+        if (target.collecting && collected != null) {
+            if (target.collected == null) {
+                target.collected = new ArrayList<Exception>(collected.size());
+            }
+            target.collected.addAll(collected);
+        }
+    }
+
+    /**
+     * Starts keeping the failures.
+     */
+    void collect() {
+
+        collecting = true;
+    }
+
+    /**
+     * Stops keeping the failures.
+     *
+     * @return The failures kept since {@link #collect()}.
+     */
+    List<Exception> drain() {
+
+        collecting = false;
+        final List<Exception> drained = collected;
+        collected = null;
+        return drained == null ? Collections.<Exception> emptyList() : drained;
+    }
+
+    long attempted() {
+
+        return attempted;
+    }
+
+    long failed() {
+
+        return failed;
+    }
+
+    /**
+     * @return Close attempts of all handlers, since the start of the process (or the last reset).
+     */
+    public static long getAttempted() {
+
+        return ATTEMPTED.sum();
+    }
+
+    /**
+     * @return Failed closes of all handlers, since the start of the process (or the last reset).
+     */
+    public static long getFailed() {
+
+        return FAILED.sum();
+    }
+
+    /**
+     * @return Fraction of the close attempts that failed, or 0 if there were none.
+     */
+    public static double getFailureRate() {
+
+        final long attempted = ATTEMPTED.sum();
+        return attempted == 0 ? 0 : (double) FAILED.sum() / attempted;
+    }
+
+    /**
+     * Zeroes the process-wide totals.
+     */
+    public static void reset() {
+
+        ATTEMPTED.reset();
+        FAILED.reset();
+    }
+
+}
@@ -0,0 +1,545 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.obadaro.jinah.common.util.Preconditions;
+import com.obadaro.jinah.sql.SqlCloseableHandler.Resources;
+
+/**
+ * Thread-safe {@link SqlCloseableHandler}, meant to be shared by several threads that run queries
+ * in parallel for the same unit of work.
+ * <p>
+ * Registrations are striped: each thread registers into one of several plain handlers, selected
+ * by thread id and guarded by its own monitor, so concurrent registrations rarely meet on the
+ * same lock. <code>ignore(...)</code> and <code>close()</code> visit every stripe. The driver calls
+ * of <code>prepare(...)</code> and of the early <code>close(Statement)</code> and
+ * <code>close(ResultSet)</code> are made without holding a stripe lock, so a slow round-trip
+ * does not hold up the registrations of the other threads of the stripe.
+ * </p>
+ * <p>
+ * <code>close()</code> may race with late registrations: each resource is either closed by the
+ * running <code>close()</code> or stays registered for the next one (or for the leak reclaimer),
+ * it is never lost. As in the base class, ResultSets of all stripes are closed before the
+ * Statements, and these before the Connections.
+ * </p>
+ * <p>
+ * Connections are only released by <code>close()</code>: the statements of a connection may be
+ * registered by any thread, so <code>releaseWithLastStatement</code> is not honored here.
+ * </p>
+ */
+public class ConcurrentSqlCloseableHandler extends SqlCloseableHandler {
+
+    /**
+     * Default expected concurrency: the number of processors.
+     */
+    private static final int DEFAULT_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+
+    private static final int MAX_STRIPES = 64;
+
+    private final SqlCloseableHandler[] stripes;
+
+    private final int mask;
+
+    /**
+     * Constructor.
+     */
+    public ConcurrentSqlCloseableHandler() {
+
+        this(DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param concurrency
+     *            Expected number of threads registering resources at the same time. Rounded up
+     *            to a power of two, between 2 and 64 stripes.
+     */
+    public ConcurrentSqlCloseableHandler(final int concurrency) {
+
+        Preconditions.checkArgument(concurrency > 0, "concurrency");
+
+        int n = 2;
+        while (n < concurrency && n < MAX_STRIPES) {
+            n <<= 1;
+        }
+
+        stripes = new SqlCloseableHandler[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new SqlCloseableHandler(true);
+        }
+        mask = n - 1;
+    }
+
+    /**
+     * @return The stripe of the current thread.
+     */
+    private SqlCloseableHandler stripe() {
+
+        final long id = Thread.currentThread().getId();
+        return stripes[(int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask];
+    }
+
+    @Override
+    public ResultSet add(final ResultSet rs) {
+
+        final SqlCloseableHandler stripe = stripe();
+        synchronized (stripe) {
+            return stripe.add(rs);
+        }
+    }
+
+    @Override
+    public ResultSet add(final ResultSet rs, final boolean registraStatement) {
+
+        final SqlCloseableHandler stripe = stripe();
+        synchronized (stripe) {
+            return stripe.add(rs, registraStatement);
+        }
+    }
+
+    @Override
+    public Statement add(final Statement st) {
+
+        final SqlCloseableHandler stripe = stripe();
+        synchronized (stripe) {
+            return stripe.add(st);
+        }
+    }
+
+    /**
+     * Prepares the statement, caching it in the stripe of the current thread. The driver is called
+     * without holding the lock of the stripe.
+     */
+    @Override
+    public PreparedStatement prepare(final Connection con, final String sql) {
+
+        Preconditions.checkArgument(con != null, "con");
+        Preconditions.checkArgument(sql != null, "sql");
+
+        final SqlCloseableHandler stripe = stripe();
+        final PreparedStatement cached;
+        synchronized (stripe) {
+            cached = stripe.preparedFor(con, sql);
+        }
+
+        if (cached != null) {
+            if (reset(cached)) {
+                synchronized (stripe) {
+                    return stripe.reuse(cached, sql);
+                }
+            }
+            synchronized (stripe) {
+                stripe.forgetPrepared(cached);
+            }
+        }
+
+        final PreparedStatement ps = prepareStatement(con, sql);
+        synchronized (stripe) {
+            return stripe.registerPrepared(con, sql, ps);
+        }
+    }
+
+    /**
+     * Leases the statement from the cache without holding the lock of the stripe, then registers
+     * it in the stripe of the current thread.
+     */
+    @Override
+    public PreparedStatement prepare(final StatementCache cache, final String sql) {
+
+        Preconditions.checkArgument(cache != null, "cache");
+
+        final PreparedStatement ps = cache.acquire(sql);
+        final SqlCloseableHandler stripe = stripe();
+        synchronized (stripe) {
+            return stripe.registerLease(cache, sql, ps);
+        }
+    }
+
+    @Override
+    void registerReadAhead(final ReadAheadSpliterator.Producer producer) {
+
+        final SqlCloseableHandler stripe = stripe();
+        synchronized (stripe) {
+            stripe.registerReadAhead(producer);
+        }
+    }
+
+    @Override
+    String sqlOf(final ResultSet rs) {
+
+        final SqlCloseableHandler stripe = stripe();
+        synchronized (stripe) {
+            return stripe.sqlOf(rs);
+        }
+    }
+
+    @Override
+    public Connection add(final Connection con) {
+
+        return add(con, false);
+    }
+
+    /**
+     * Registers the Connection, to be closed by <code>close()</code>.
+     *
+     * @param con
+     * @param releaseWithLastStatement
+     *            Ignored, see the class documentation.
+     * @return
+     */
+    @Override
+    public Connection add(final Connection con, final boolean releaseWithLastStatement) {
+
+        final SqlCloseableHandler stripe = stripe();
+        synchronized (stripe) {
+            return stripe.add(con, false);
+        }
+    }
+
+    /**
+     * Closes the Statement now. It is taken out of every stripe under the stripe locks, but closed
+     * (or given back to its cache) without holding any, see {@link EarlyClose}.
+     */
+    @Override
+    public void close(final Statement st) {
+
+        if (st == null) {
+            return;
+        }
+
+        final EarlyClose close = new EarlyClose(st);
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.detach(st, close);
+            }
+        }
+
+        final SqlEvents.ResourceClose event = SqlEvents.beginResourceClose("Statement", close.sql());
+        close.run();
+        if (event != null) {
+            event.commit();
+        }
+        settle(close);
+    }
+
+    /**
+     * Closes the ResultSet now, without holding any stripe lock, see {@link #close(Statement)}.
+     */
+    @Override
+    public void close(final ResultSet rs) {
+
+        if (rs == null) {
+            return;
+        }
+
+        final EarlyClose close = new EarlyClose(rs);
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.detach(rs, close);
+            }
+        }
+
+        final SqlEvents.ResourceClose event = SqlEvents.beginResourceClose("ResultSet", null);
+        close.run();
+        if (event != null) {
+            event.commit();
+        }
+        settle(close);
+    }
+
+    /**
+     * Accounts the closes in the stripe the resource was registered in.
+     */
+    @Override
+    void settle(final EarlyClose close) {
+
+        final SqlCloseableHandler stripe = close.registeredIn();
+        if (stripe == null) {
+            close.failures().addTo(null);
+            return;
+        }
+        synchronized (stripe) {
+            stripe.settle(close);
+        }
+    }
+
+    @Override
+    public void ignore(final Statement st) {
+
+        if (st == null) {
+            return;
+        }
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.ignore(st);
+            }
+        }
+    }
+
+    @Override
+    public void ignore(final ResultSet rs) {
+
+        if (rs == null) {
+            return;
+        }
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.ignore(rs);
+            }
+        }
+    }
+
+    @Override
+    public void ignore(final Connection con) {
+
+        if (con == null) {
+            return;
+        }
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.ignore(con);
+            }
+        }
+    }
+
+    /**
+     * Cancels the executing Statements of every stripe.
+     */
+    @Override
+    public void cancel() {
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.cancel();
+            }
+        }
+    }
+
+    /**
+     * Sets the deadline, shared by every stripe. The timer cancels the Statements of all stripes.
+     */
+    @Override
+    public synchronized void setDeadline(final long timeout, final TimeUnit unit) {
+
+        super.setDeadline(timeout, unit);
+        final Deadline deadline = getDeadline();
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.inheritDeadline(deadline);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clearDeadline() {
+
+        super.clearDeadline();
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.inheritDeadline(null);
+            }
+        }
+    }
+
+    /**
+     * Closes all registered ResultSet, Statement and Connection of every stripe.
+     */
+    @Override
+    public void close() {
+
+        clearDeadline();
+
+        final SqlMetrics m = getMetrics();
+        final long start = m == SqlMetrics.NOOP ? 0L : System.nanoTime();
+        final SqlEvents.Close event = SqlEvents.beginClose();
+        if (event != null) {
+            describe(event);
+        }
+
+        try {
+            closeResultSets();
+        } catch (final Exception e) {
+            // noop.
+        }
+
+        try {
+            closeStatements();
+        } catch (final Exception e) {
+            // noop.
+        }
+
+        try {
+            closeConnections();
+        } catch (final Exception e) {
+            // noop.
+        }
+
+        flushCloseFailures();
+        if (event != null) {
+            event.commit();
+        }
+        endScope(m, start);
+    }
+
+    @Override
+    void describe(final SqlEvents.Close event) {
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.describe(event);
+            }
+        }
+    }
+
+    @Override
+    boolean drainScope(final long[] counts) {
+
+        boolean scoped = false;
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                scoped |= stripe.drainScope(counts);
+            }
+        }
+        return scoped;
+    }
+
+    @Override
+    void collectCloseFailures() {
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.collectCloseFailures();
+            }
+        }
+    }
+
+    @Override
+    List<Exception> drainCloseFailures() {
+
+        final List<Exception> failures = new ArrayList<Exception>();
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                failures.addAll(stripe.drainCloseFailures());
+            }
+        }
+        return failures;
+    }
+
+    @Override
+    void flushCloseFailures() {
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.flushCloseFailures();
+            }
+        }
+    }
+
+    @Override
+    public long getAttemptedCloses() {
+
+        long attempted = 0;
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                attempted += stripe.getAttemptedCloses();
+            }
+        }
+        return attempted;
+    }
+
+    @Override
+    public long getFailedCloses() {
+
+        long failed = 0;
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                failed += stripe.getFailedCloses();
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Detaches the resources of every stripe and closes them all in a single background task.
+     */
+    @Override
+    public void closeAsync() {
+
+        clearDeadline();
+
+        final SqlMetrics m = getMetrics();
+        final long start = m == SqlMetrics.NOOP ? 0L : System.nanoTime();
+
+        final Resources[] detached = new Resources[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            final SqlCloseableHandler stripe = stripes[i];
+            synchronized (stripe) {
+                detached[i] = stripe.detachResources();
+            }
+        }
+
+        AsyncCloser.close(detached);
+        flushCloseFailures();
+        endScope(m, start);
+    }
+
+    @Override
+    protected void closeStatements() {
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.closeStatements();
+            }
+        }
+    }
+
+    @Override
+    protected void closeResultSets() {
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.closeResultSets();
+            }
+        }
+    }
+
+    @Override
+    protected void closeConnections() {
+
+        for (final SqlCloseableHandler stripe : stripes) {
+            synchronized (stripe) {
+                stripe.closeConnections();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline of a {@link SqlCloseableHandler}: gives each Statement registered before it the query
+ * timeout of the time remaining, and cancels the Statements still running when it passes.
+ * <p>
+ * The Statements under the deadline are kept by the deadline itself, guarded by its lock, so the
+ * timer thread never reads the registers of the handler. Once ended by {@link #cancel()} (the
+ * handler was closed, or its deadline replaced), an expiry already running cancels nothing: the
+ * Statements of a later scope of the same handler are under another deadline. The expiry is
+ * scheduled on a single shared daemon thread and does not refer to the handler, so a handler that
+ * is never closed can still be reclaimed before its deadline.
+ * </p>
+ */
+final class Deadline {
+
+    /**
+     * Lazy holder of the timer thread.
+     */
+    private static final class Timer {
+
+        static final ScheduledThreadPoolExecutor EXECUTOR = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable r) {
+
+                    final Thread t = new Thread(r, "jinah-sql-deadline");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    private final long at;
+
+    private final ScheduledFuture<?> expiry;
+
+    /**
+     * Statements under the deadline. Guarded by <code>this</code>.
+     */
+    private final List<Statement> statements = new ArrayList<Statement>();
+
+    /**
+     * Whether the deadline passed or was cancelled. Guarded by <code>this</code>.
+     */
+    private boolean ended;
+
+    /**
+     * Whether the expiry ran. Guarded by <code>this</code>.
+     */
+    private boolean expired;
+
+    /**
+     * @param timeoutNanos
+     */
+    Deadline(final long timeoutNanos) {
+
+        this.at = System.nanoTime() + timeoutNanos;
+        this.expiry = Timer.EXECUTOR.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+
+                expire();
+            }
+        }, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Time remaining, in nanoseconds; zero or negative once passed.
+     */
+    long remainingNanos() {
+
+        return at - System.nanoTime();
+    }
+
+    /**
+     * Puts a Statement just registered under the deadline.
+     *
+     * @param st
+     * @throws JinahSqlException
+     *             If the deadline has passed, with a {@link SQLTimeoutException} as cause.
+     */
+    void apply(final Statement st) {
+
+        final long remaining = remainingNanos();
+        if (remaining <= 0) {
+            throw new JinahSqlException("Deadline exceeded.", new SQLTimeoutException("Deadline exceeded by "
+                    + TimeUnit.NANOSECONDS.toMillis(-remaining) + " ms."));
+        }
+        track(st);
+    }
+
+    /**
+     * Puts a Statement under the deadline: sets its query timeout to the time remaining, rounded
+     * up to seconds, if any, and cancels it when the deadline passes. Never fails.
+     *
+     * @param st
+     */
+    void track(final Statement st) {
+
+        final long remaining = remainingNanos();
+        if (remaining > 0) {
+            try {
+                st.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (remaining + 999999999L) / 1000000000L));
+            } catch (final SQLException e) {
+                // noop: the expiry still cancels it.
+            }
+        }
+
+        final boolean late;
+        synchronized (this) {
+            late = expired;
+            if (!ended && !contains(st)) {
+                statements.add(st);
+            }
+        }
+        if (late) {
+            cancel(st);
+        }
+    }
+
+    private boolean contains(final Statement st) {
+
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            if (statements.get(i) == st) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes a Statement closed or ignored by the handler out of the deadline.
+     *
+     * @param st
+     */
+    synchronized void forget(final Statement st) {
+
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            if (statements.get(i) == st) {
+                statements.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Run by the timer: cancels the Statements under the deadline.
+     */
+    private synchronized void expire() {
+
+        if (ended) {
+            return;
+        }
+        ended = true;
+        expired = true;
+
+        // under the lock: the handler cannot close (and hand a cached Statement to another scope)
+        // a Statement being cancelled.
+        for (int i = statements.size() - 1; i >= 0; i--) {
+            cancel(statements.get(i));
+        }
+        statements.clear();
+    }
+
+    private static void cancel(final Statement st) {
+
+        try {
+            st.cancel();
+        } catch (final SQLException e) {
+            // noop: already closed or finished.
+        }
+    }
+
+    /**
+     * Ends the deadline without cancelling anything and unschedules the expiry. Waits for an
+     * expiry already running.
+     */
+    void cancel() {
+
+        synchronized (this) {
+            ended = true;
+            statements.clear();
+        }
+        expiry.cancel(false);
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link SqlMetrics} kept in memory: {@link LongAdder} counters, maximums and
+ * {@link LatencyHistogram}s of the handler lifetime and of the <code>close()</code> latency. Meant
+ * to be read periodically by whatever exports the application metrics.
+ */
+public class DefaultSqlMetrics implements SqlMetrics {
+
+    private final LongAdder handlersOpened = new LongAdder();
+
+    private final LongAdder handlersClosed = new LongAdder();
+
+    private final LongAdder scopesClosed = new LongAdder();
+
+    private final LongAdder statements = new LongAdder();
+
+    private final LongAdder resultSets = new LongAdder();
+
+    private final LongAdder connections = new LongAdder();
+
+    private final LongAdder ignored = new LongAdder();
+
+    private final LongAdder leakedHandlers = new LongAdder();
+
+    private final LongAdder leakedResources = new LongAdder();
+
+    private final LongAccumulator peakStatements = new LongAccumulator(Math::max, 0);
+
+    private final LongAccumulator peakResultSets = new LongAccumulator(Math::max, 0);
+
+    private final LatencyHistogram lifetime = new LatencyHistogram();
+
+    private final LatencyHistogram closeLatency = new LatencyHistogram();
+
+    @Override
+    public void handlerOpened() {
+
+        handlersOpened.increment();
+    }
+
+    @Override
+    public void handlerClosed() {
+
+        handlersClosed.increment();
+    }
+
+    @Override
+    public void scopeClosed(final long lifetimeNanos, final long closeNanos) {
+
+        scopesClosed.increment();
+        lifetime.record(lifetimeNanos);
+        closeLatency.record(closeNanos);
+    }
+
+    @Override
+    public void registered(final int statements, final int resultSets, final int connections) {
+
+        if (statements > 0) {
+            this.statements.add(statements);
+        }
+        if (resultSets > 0) {
+            this.resultSets.add(resultSets);
+        }
+        if (connections > 0) {
+            this.connections.add(connections);
+        }
+    }
+
+    @Override
+    public void peakOpen(final int statements, final int resultSets) {
+
+        peakStatements.accumulate(statements);
+        peakResultSets.accumulate(resultSets);
+    }
+
+    @Override
+    public void ignored(final int resources) {
+
+        if (resources > 0) {
+            ignored.add(resources);
+        }
+    }
+
+    @Override
+    public void leaked(final int statements, final int resultSets, final int connections) {
+
+        leakedHandlers.increment();
+        leakedResources.add(statements + resultSets + connections);
+    }
+
+    /**
+     * @return Handlers created or taken from the pool.
+     */
+    public long getHandlersOpened() {
+
+        return handlersOpened.sum();
+    }
+
+    /**
+     * @return Handlers closed, empty or not; counted once per opening.
+     */
+    public long getHandlersClosed() {
+
+        return handlersClosed.sum();
+    }
+
+    /**
+     * @return Closes that ended a scope with registered resources.
+     */
+    public long getScopesClosed() {
+
+        return scopesClosed.sum();
+    }
+
+    public long getStatementsRegistered() {
+
+        return statements.sum();
+    }
+
+    public long getResultSetsRegistered() {
+
+        return resultSets.sum();
+    }
+
+    public long getConnectionsRegistered() {
+
+        return connections.sum();
+    }
+
+    public long getIgnored() {
+
+        return ignored.sum();
+    }
+
+    /**
+     * @return Handlers reclaimed without being closed.
+     */
+    public long getLeakedHandlers() {
+
+        return leakedHandlers.sum();
+    }
+
+    /**
+     * @return Resources closed by the leak reclaimer.
+     */
+    public long getLeakedResources() {
+
+        return leakedResources.sum();
+    }
+
+    /**
+     * @return Most Statements open at the same time in a single handler.
+     */
+    public long getPeakStatements() {
+
+        return peakStatements.get();
+    }
+
+    /**
+     * @return Most ResultSets open at the same time in a single handler.
+     */
+    public long getPeakResultSets() {
+
+        return peakResultSets.get();
+    }
+
+    /**
+     * @return Time from the first registration to the <code>close()</code> of the handlers.
+     */
+    public LatencyHistogram getLifetime() {
+
+        return lifetime;
+    }
+
+    /**
+     * @return Time spent in <code>close()</code>.
+     */
+    public LatencyHistogram getCloseLatency() {
+
+        return closeLatency;
+    }
+
+    /**
+     * Zeroes everything.
+     */
+    public void reset() {
+
+        handlersOpened.reset();
+        handlersClosed.reset();
+        scopesClosed.reset();
+        statements.reset();
+        resultSets.reset();
+        connections.reset();
+        ignored.reset();
+        leakedHandlers.reset();
+        leakedResources.reset();
+        peakStatements.reset();
+        peakResultSets.reset();
+        lifetime.reset();
+        closeLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+
+        return "handlers opened=" + getHandlersOpened() + " closed=" + getHandlersClosed() + " scopes="
+                + getScopesClosed() + " leaked="
+                + getLeakedHandlers() + "; registered statements=" + getStatementsRegistered() + " resultSets="
+                + getResultSetsRegistered() + " connections=" + getConnectionsRegistered() + " ignored="
+                + getIgnored() + "; close p50=" + micros(closeLatency.getPercentileNanos(50)) + "us p99="
+                + micros(closeLatency.getPercentileNanos(99)) + "us";
+    }
+
+    private static long micros(final long nanos) {
+
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Statement or ResultSet closed early by a {@link ConcurrentSqlCloseableHandler}: it is taken
+ * out of the registers of every stripe under the stripe lock, then closed without holding any
+ * lock, so a driver round-trip does not block the registrations of the threads of the stripe.
+ * <p>
+ * Not thread-safe: filled under the stripe locks, one at a time, then run by the closing thread.
+ * </p>
+ */
+final class EarlyClose {
+
+    private final AutoCloseable resource;
+
+    /**
+     * SQL of the statement, for the JFR event, if known.
+     */
+    private String sql;
+
+    /**
+     * Cache the statement is leased from, if any: it is given back instead of closed.
+     */
+    private StatementCache cache;
+
+    /**
+     * Producers of the read-ahead streams of the resource. Created on demand.
+     */
+    private List<ReadAheadSpliterator.Producer> readAheads;
+
+    /**
+     * Registered ResultSets of the statement, settled with it. Created on demand.
+     */
+    private List<Object> owned;
+
+    private final CloseFailures failures = new CloseFailures();
+
+    /**
+     * First stripe the resource was registered in, which accounts the closes.
+     */
+    private SqlCloseableHandler registeredIn;
+
+    /**
+     * @param resource
+     *            Statement or ResultSet.
+     */
+    EarlyClose(final AutoCloseable resource) {
+
+        this.resource = resource;
+        failures.collect();
+    }
+
+    void sql(final String sql) {
+
+        if (sql != null) {
+            this.sql = sql;
+        }
+    }
+
+    String sql() {
+
+        return sql;
+    }
+
+    void registeredIn(final SqlCloseableHandler stripe) {
+
+        if (registeredIn == null) {
+            registeredIn = stripe;
+        }
+    }
+
+    /**
+     * @return First stripe the resource was registered in, or <code>null</code>.
+     */
+    SqlCloseableHandler registeredIn() {
+
+        return registeredIn;
+    }
+
+    void lease(final StatementCache cache) {
+
+        this.cache = cache;
+    }
+
+    void readAhead(final ReadAheadSpliterator.Producer producer) {
+
+        if (readAheads == null) {
+            readAheads = new ArrayList<ReadAheadSpliterator.Producer>(2);
+        }
+        readAheads.add(producer);
+    }
+
+    /**
+     * @return Where to put the registered ResultSets of the statement.
+     */
+    List<Object> owned() {
+
+        if (owned == null) {
+            owned = new ArrayList<Object>(2);
+        }
+        return owned;
+    }
+
+    /**
+     * Stops the read-ahead producers and closes the resource, or gives it back to its cache, with
+     * the ResultSets it owns. Called without holding any stripe lock.
+     */
+    void run() {
+
+        if (readAheads != null) {
+            for (int i = readAheads.size() - 1; i >= 0; i--) {
+                readAheads.get(i).stop(true);
+            }
+        }
+
+        if (cache != null) {
+            // not closed: its ResultSets are closed explicitly before it is handed out again.
+            if (owned != null) {
+                for (int i = owned.size() - 1; i >= 0; i--) {
+                    CloseFailures.close(failures, owned.get(i));
+                }
+            }
+            cache.release((PreparedStatement) resource);
+            return;
+        }
+
+        if (owned != null) {
+            for (int i = owned.size() - 1; i >= 0; i--) {
+                if (CloseCascade.closedBeforeOwner(owned.get(i))) {
+                    owned.remove(i);
+                }
+            }
+        }
+
+        CloseFailures.close(failures, resource);
+
+        if (owned != null) {
+            for (int i = owned.size() - 1; i >= 0; i--) {
+                CloseCascade.closeIfNotCascaded(owned.get(i), failures);
+            }
+        }
+    }
+
+    /**
+     * @return Outcome of the closes done by {@link #run()}, with the failures kept.
+     */
+    CloseFailures failures() {
+
+        return failures;
+    }
+
+}
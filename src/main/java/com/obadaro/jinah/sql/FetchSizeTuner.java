@@ -0,0 +1,190 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.obadaro.jinah.common.util.Preconditions;
+
+/**
+ * Learns a fetch size per SQL text from the executions observed by the handlers.
+ * <p>
+ * For each SQL it keeps moving averages of the rows read per execution and of the time spent
+ * decoding a row. The suggested fetch size covers the expected rows in a single round trip, but
+ * never more rows than can be decoded within the decode budget (a proxy for the memory a fetch
+ * holds), and stays between the configured minimum and maximum.
+ * </p>
+ * <p>
+ * Enabled with <code>-Djinah.sql.fetch.adaptive=true</code>: statements obtained with
+ * <code>SqlCloseableHandler.prepare(...)</code> then get the learned fetch size, and the streams of
+ * their ResultSets report what they read. Other settings: <code>jinah.sql.fetch.min</code> (default
+ * 16), <code>jinah.sql.fetch.max</code> (default 5000), <code>jinah.sql.fetch.budgetMillis</code>
+ * (decode time per fetch, default 50) and <code>jinah.sql.fetch.maxShapes</code> (SQL texts
+ * tracked, default 1024).
+ * </p>
+ */
+public final class FetchSizeTuner {
+
+    static final boolean ENABLED = Boolean.getBoolean("jinah.sql.fetch.adaptive");
+
+    private static final FetchSizeTuner DEFAULT = new FetchSizeTuner(Integer.getInteger("jinah.sql.fetch.min", 16),
+            Integer.getInteger("jinah.sql.fetch.max", 5000), Integer.getInteger("jinah.sql.fetch.budgetMillis", 50),
+            Integer.getInteger("jinah.sql.fetch.maxShapes", 1024));
+
+    /**
+     * Weight of the newest observation in the moving averages.
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * Learned statistics of a SQL text.
+     */
+    private static final class Shape {
+
+        double rows = -1;
+
+        double nanosPerRow;
+
+        volatile int fetchSize;
+    }
+
+    private final int minFetchSize;
+
+    private final int maxFetchSize;
+
+    private final long budgetNanos;
+
+    private final int maxShapes;
+
+    private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+
+    /**
+     * Constructor.
+     *
+     * @param minFetchSize
+     * @param maxFetchSize
+     * @param budgetMillis
+     *            Decode time allowed per fetch.
+     * @param maxShapes
+     *            Maximum number of SQL texts tracked; new ones are ignored beyond it.
+     */
+    public FetchSizeTuner(final int minFetchSize, final int maxFetchSize, final int budgetMillis,
+            final int maxShapes) {
+
+        Preconditions.checkArgument(minFetchSize > 0 && minFetchSize <= maxFetchSize, "minFetchSize");
+        Preconditions.checkArgument(budgetMillis > 0, "budgetMillis");
+
+        this.minFetchSize = minFetchSize;
+        this.maxFetchSize = maxFetchSize;
+        this.budgetNanos = budgetMillis * 1000000L;
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * @return The tuner used by the handlers.
+     */
+    public static FetchSizeTuner getDefault() {
+
+        return DEFAULT;
+    }
+
+    /**
+     * @param sql
+     * @return The learned fetch size, or 0 (driver default) if nothing was learned for the SQL.
+     */
+    public int fetchSize(final String sql) {
+
+        final Shape shape = shapes.get(sql);
+        return shape == null ? 0 : shape.fetchSize;
+    }
+
+    /**
+     * Records an execution.
+     *
+     * @param sql
+     * @param rows
+     *            Rows read.
+     * @param nanosPerRow
+     *            Average time spent decoding a row, or 0 if unknown.
+     */
+    public void observe(final String sql, final long rows, final long nanosPerRow) {
+
+        Shape shape = shapes.get(sql);
+        if (shape == null) {
+            if (shapes.size() >= maxShapes) {
+                return;
+            }
+            final Shape created = new Shape();
+            shape = shapes.putIfAbsent(sql, created);
+            if (shape == null) {
+                shape = created;
+            }
+        }
+
+        synchronized (shape) {
+            if (shape.rows < 0) {
+                shape.rows = rows;
+                shape.nanosPerRow = nanosPerRow;
+            } else {
+                shape.rows += ALPHA * (rows - shape.rows);
+                if (nanosPerRow > 0) {
+                    shape.nanosPerRow += ALPHA * (nanosPerRow - shape.nanosPerRow);
+                }
+            }
+            shape.fetchSize = suggest(shape.rows, shape.nanosPerRow);
+        }
+    }
+
+    private int suggest(final double rows, final double nanosPerRow) {
+
+        // the expected rows, with room for growth and for the end of the results.
+        double size = rows * 1.25 + 1;
+
+        if (nanosPerRow > 0) {
+            size = Math.min(size, budgetNanos / nanosPerRow);
+        }
+
+        return (int) Math.max(minFetchSize, Math.min(maxFetchSize, size));
+    }
+
+    /**
+     * @return The learned fetch sizes, by SQL text.
+     */
+    public Map<String, Integer> snapshot() {
+
+        final Map<String, Integer> snapshot = new TreeMap<String, Integer>();
+        for (final Map.Entry<String, Shape> e : shapes.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().fetchSize);
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * Forgets everything learned.
+     */
+    public void reset() {
+
+        shapes.clear();
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide census of the live handlers and of the resources registered in them, published as
+ * the platform MBean <code>com.obadaro.jinah.sql:type=HandlerCensus</code>.
+ * <p>
+ * Disabled by default: enabled at startup with <code>-Djinah.sql.census=true</code>, or later with
+ * {@link #enable()} (handlers that already registered something are then not tracked). A handler
+ * is tracked from its first registration, through a weak reference that never keeps it alive, and
+ * dropped once it is collected. Each stripe of a {@link ConcurrentSqlCloseableHandler} is tracked as
+ * a handler.
+ * </p>
+ * <p>
+ * The counts are read from the registers of the handlers without synchronization, while they are
+ * in use: they are a snapshot good for diagnosis, not exact figures. The open resource peaks are
+ * the highest seen by a read of the census; the live handler peak is exact.
+ * </p>
+ */
+public final class HandlerCensus implements HandlerCensusMBean {
+
+    private static final String OBJECT_NAME = "com.obadaro.jinah.sql:type=HandlerCensus";
+
+    private static final HandlerCensus INSTANCE = new HandlerCensus();
+
+    private static volatile boolean enabled;
+
+    private final Set<Entry> entries = ConcurrentHashMap.newKeySet();
+
+    private final ReferenceQueue<SqlCloseableHandler> collected = new ReferenceQueue<SqlCloseableHandler>();
+
+    private final AtomicInteger live = new AtomicInteger();
+
+    private final LongAccumulator peakLive = new LongAccumulator(Math::max, 0);
+
+    private final LongAccumulator peakOpen = new LongAccumulator(Math::max, 0);
+
+    private final LongAccumulator peakResultSets = new LongAccumulator(Math::max, 0);
+
+    private final LongAdder leakedHandlers = new LongAdder();
+
+    private final LongAdder leakedResources = new LongAdder();
+
+    static {
+        if (Boolean.getBoolean("jinah.sql.census")) {
+            enable();
+        }
+    }
+
+    private HandlerCensus() {
+        // noop.
+    }
+
+    /**
+     * Starts tracking the handlers and publishes the MBean, if not done yet.
+     */
+    public static synchronized void enable() {
+
+        if (enabled) {
+            return;
+        }
+        enabled = true;
+
+        if (ModuleLayer.boot().findModule("java.management").isPresent()) {
+            Jmx.publish(INSTANCE);
+        } else {
+            Logger.getLogger("global").warning("No java.management module: " + OBJECT_NAME + " not published.");
+        }
+    }
+
+    /**
+     * @return Whether new handlers are tracked.
+     */
+    public static boolean isEnabled() {
+
+        return enabled;
+    }
+
+    /**
+     * @return The census.
+     */
+    public static HandlerCensus getInstance() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Tracks a handler, if the census is enabled. Called once per handler, when its registers are
+     * created.
+     * 
+     * @param handler
+     * @param resources
+     *            Registers of the handler.
+     */
+    static void track(final SqlCloseableHandler handler, final SqlCloseableHandler.Resources resources) {
+
+        if (enabled) {
+            INSTANCE.add(handler, resources);
+        }
+    }
+
+    /**
+     * Counts a handler reclaimed by the leak reclaimer. Always counted: leaks are rare.
+     * 
+     * @param resources
+     *            Resources it left registered.
+     */
+    static void leaked(final int resources) {
+
+        INSTANCE.leakedHandlers.increment();
+        INSTANCE.leakedResources.add(resources);
+    }
+
+    private void add(final SqlCloseableHandler handler, final SqlCloseableHandler.Resources resources) {
+
+        expunge();
+        entries.add(new Entry(handler, resources, collected));
+        peakLive.accumulate(live.incrementAndGet());
+    }
+
+    /**
+     * Drops the entries of the collected handlers.
+     */
+    private void expunge() {
+
+        Reference<? extends SqlCloseableHandler> ref;
+        while ((ref = collected.poll()) != null) {
+            if (entries.remove(ref)) {
+                live.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return Registers of the live handlers, counted into the observed peaks.
+     */
+    private List<Entry> snapshot() {
+
+        expunge();
+
+        final List<Entry> snapshot = new ArrayList<Entry>(entries.size());
+        int open = 0;
+        int resultSets = 0;
+        for (final Entry entry : entries) {
+            if (entry.get() != null) {
+                snapshot.add(entry);
+                open += entry.resources.size();
+                resultSets += entry.resources.resultSetRegister.size();
+            }
+        }
+        peakOpen.accumulate(open);
+        peakResultSets.accumulate(resultSets);
+        return snapshot;
+    }
+
+    @Override
+    public int getLiveHandlers() {
+
+        return snapshot().size();
+    }
+
+    @Override
+    public int getPeakLiveHandlers() {
+
+        return (int) peakLive.get();
+    }
+
+    @Override
+    public int getBusyHandlers() {
+
+        int busy = 0;
+        for (final Entry entry : snapshot()) {
+            if (!entry.resources.isEmpty()) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    @Override
+    public int getOpenStatements() {
+
+        int statements = 0;
+        for (final Entry entry : snapshot()) {
+            statements += entry.resources.statementRegister.size() + entry.resources.leaseRegister.size();
+        }
+        return statements;
+    }
+
+    @Override
+    public int getOpenResultSets() {
+
+        int resultSets = 0;
+        for (final Entry entry : snapshot()) {
+            resultSets += entry.resources.resultSetRegister.size();
+        }
+        return resultSets;
+    }
+
+    @Override
+    public int getOpenConnections() {
+
+        int connections = 0;
+        for (final Entry entry : snapshot()) {
+            connections += entry.resources.connectionRegister.size();
+        }
+        return connections;
+    }
+
+    @Override
+    public int getPeakOpenResources() {
+
+        snapshot();
+        return (int) peakOpen.get();
+    }
+
+    @Override
+    public int getPeakOpenResultSets() {
+
+        snapshot();
+        return (int) peakResultSets.get();
+    }
+
+    @Override
+    public long getLeakedHandlers() {
+
+        return leakedHandlers.sum();
+    }
+
+    @Override
+    public long getLeakedResources() {
+
+        return leakedResources.sum();
+    }
+
+    @Override
+    public synchronized String dumpOldest(final int max) {
+
+        final long now = System.nanoTime();
+        final List<Entry> busy = new ArrayList<Entry>();
+        for (final Entry entry : snapshot()) {
+            // read once: the owner may be closing it.
+            entry.openedAt = entry.resources.openedAt;
+            if (!entry.resources.isEmpty()) {
+                busy.add(entry);
+            }
+        }
+        busy.sort(Comparator.comparingLong((final Entry e) -> now - e.openedAt).reversed());
+
+        final StringBuilder dump = new StringBuilder(256);
+        dump.append(busy.size()).append(" handler(s) holding resources.");
+        for (int i = 0; i < busy.size() && i < max; i++) {
+            final SqlCloseableHandler.Resources r = busy.get(i).resources;
+            dump.append("\n\n").append(TimeUnit.NANOSECONDS.toMillis(now - busy.get(i).openedAt));
+            dump.append(" ms: ").append(r.statementRegister.size() + r.leaseRegister.size());
+            dump.append(" Statement(s), ").append(r.resultSetRegister.size());
+            dump.append(" ResultSet(s), ").append(r.connectionRegister.size()).append(" Connection(s)");
+            final Throwable site = r.site;
+            if (site == null) {
+                dump.append(", no capture site (see jinah.sql.leak.sampling).");
+            } else {
+                dump.append(", registered at:");
+                for (final StackTraceElement frame : site.getStackTrace()) {
+                    dump.append("\n\tat ").append(frame);
+                }
+            }
+        }
+        return dump.toString();
+    }
+
+    @Override
+    public void reset() {
+
+        peakLive.reset();
+        peakLive.accumulate(live.get());
+        peakOpen.reset();
+        peakResultSets.reset();
+        leakedHandlers.reset();
+        leakedResources.reset();
+    }
+
+    /**
+     * Holder of the JMX code, loaded only when <code>java.management</code> is available: the
+     * census is referenced by the registration path of every handler.
+     */
+    private static final class Jmx {
+
+        static void publish(final HandlerCensus census) {
+
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(census, name);
+                }
+            } catch (final JMException e) {
+                Logger.getLogger("global").log(Level.WARNING, "Could not publish " + OBJECT_NAME + ".", e);
+            }
+        }
+    }
+
+    /**
+     * A tracked handler. Holds its registers, which never refer back to it.
+     */
+    private static final class Entry extends WeakReference<SqlCloseableHandler> {
+
+        final SqlCloseableHandler.Resources resources;
+
+        /**
+         * Copy of {@link SqlCloseableHandler.Resources#openedAt} taken by {@link #dumpOldest(int)}.
+         */
+        long openedAt;
+
+        Entry(final SqlCloseableHandler handler, final SqlCloseableHandler.Resources resources,
+                final ReferenceQueue<SqlCloseableHandler> queue) {
+
+            super(handler, queue);
+            this.resources = resources;
+        }
+    }
+
+}
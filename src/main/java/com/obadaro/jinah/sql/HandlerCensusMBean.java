@@ -0,0 +1,86 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+/**
+ * Management interface of {@link HandlerCensus}, published as
+ * <code>com.obadaro.jinah.sql:type=HandlerCensus</code>.
+ */
+public interface HandlerCensusMBean {
+
+    /**
+     * @return Tracked handlers still reachable, idle ones included.
+     */
+    int getLiveHandlers();
+
+    /**
+     * @return Most tracked handlers reachable at the same time.
+     */
+    int getPeakLiveHandlers();
+
+    /**
+     * @return Live handlers holding at least one registered resource.
+     */
+    int getBusyHandlers();
+
+    int getOpenStatements();
+
+    /**
+     * @return ResultSets (cursors) registered in live handlers.
+     */
+    int getOpenResultSets();
+
+    int getOpenConnections();
+
+    /**
+     * @return Most resources seen registered at the same time by a census read.
+     */
+    int getPeakOpenResources();
+
+    /**
+     * @return Most ResultSets seen registered at the same time by a census read.
+     */
+    int getPeakOpenResultSets();
+
+    /**
+     * @return Handlers reclaimed without being closed.
+     */
+    long getLeakedHandlers();
+
+    /**
+     * @return Resources closed by the leak reclaimer.
+     */
+    long getLeakedResources();
+
+    /**
+     * Describes the busy handlers that registered their resources first.
+     *
+     * @param max
+     *            Handlers to describe.
+     * @return One paragraph per handler: age, counts and capture site, if sampled.
+     */
+    String dumpOldest(int max);
+
+    /**
+     * Zeroes the peaks and the leak totals.
+     */
+    void reset();
+
+}
@@ -0,0 +1,81 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.ArrayDeque;
+
+/**
+ * Per-thread pool of idle {@link SqlCloseableHandler} instances, used by
+ * {@link SqlCloseableHandler#getService()} when pooling is enabled.
+ * <p>
+ * Configured by system properties:
+ * <ul>
+ * <li><code>jinah.sql.handler.pool</code>: enables pooling (default <code>false</code>);</li>
+ * <li><code>jinah.sql.handler.pool.size</code>: idle handlers kept per thread (default 8);</li>
+ * <li><code>jinah.sql.handler.pool.debug</code>: returned handlers are never handed out again and
+ * remember where they were returned, so any use after return is reported.</li>
+ * </ul>
+ * </p>
+ */
+final class HandlerPool {
+
+    static final boolean ENABLED = Boolean.getBoolean("jinah.sql.handler.pool");
+
+    static final boolean DEBUG = Boolean.getBoolean("jinah.sql.handler.pool.debug");
+
+    private static final int SIZE = Integer.getInteger("jinah.sql.handler.pool.size", 8);
+
+    private static final ThreadLocal<ArrayDeque<SqlCloseableHandler>> IDLE = ThreadLocal
+            .withInitial(() -> new ArrayDeque<SqlCloseableHandler>(SIZE));
+
+    private HandlerPool() {
+        // noop.
+    }
+
+    /**
+     * @return An idle handler of the current thread, or <code>null</code> if there is none.
+     */
+    static SqlCloseableHandler poll() {
+
+        return IDLE.get().pollFirst();
+    }
+
+    /**
+     * Keeps the (already cleared) handler for reuse by the current thread.
+     *
+     * @param handler
+     * @return <code>false</code> if the handler was discarded.
+     */
+    static boolean offer(final SqlCloseableHandler handler) {
+
+        if (DEBUG) {
+            return false;
+        }
+
+        final ArrayDeque<SqlCloseableHandler> idle = IDLE.get();
+        if (idle.size() >= SIZE) {
+            return false;
+        }
+
+        idle.addFirst(handler);
+        return true;
+    }
+
+}
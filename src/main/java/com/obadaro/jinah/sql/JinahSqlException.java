@@ -19,17 +19,53 @@
  */
 package com.obadaro.jinah.sql;
 
+import java.sql.SQLException;
+
 import com.obadaro.jinah.common.JinahException;
 
 /**
+ * Unchecked wrapper of SQL failures. If the cause is a {@link SQLException}, its SQLState and vendor
+ * code are kept here.
+ * <p>
+ * For flows that use failures as control flow (constraint violations, "no rows"), use
+ * {@link #lightweight(String, Throwable)}: with <code>-Djinah.sql.exception.stackless=true</code>
+ * it returns an exception that skips <code>fillInStackTrace()</code>, the main cost of creating it.
+ * </p>
+ *
  * @author Roberto Badaro
  */
 public class JinahSqlException extends JinahException {
 
     private static final long serialVersionUID = 1L;
 
+    static final boolean STACKLESS = Boolean.getBoolean("jinah.sql.exception.stackless");
+
+    /**
+     * JinahSqlException without stack trace.
+     */
+    private static final class Stackless extends JinahSqlException {
+
+        private static final long serialVersionUID = 1L;
+
+        Stackless(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+
+            return this;
+        }
+    }
+
+    private final String sqlState;
+
+    private final int vendorCode;
+
     public JinahSqlException() {
         super();
+        this.sqlState = null;
+        this.vendorCode = 0;
     }
 
     /**
@@ -37,6 +73,8 @@ public class JinahSqlException extends JinahException {
      */
     public JinahSqlException(final String message) {
         super(message);
+        this.sqlState = null;
+        this.vendorCode = 0;
     }
 
     /**
@@ -44,6 +82,8 @@ public class JinahSqlException extends JinahException {
      */
     public JinahSqlException(final Throwable cause) {
         super(cause);
+        this.sqlState = sqlStateOf(cause);
+        this.vendorCode = vendorCodeOf(cause);
     }
 
     /**
@@ -52,6 +92,60 @@ public class JinahSqlException extends JinahException {
      */
     public JinahSqlException(final String message, final Throwable cause) {
         super(message, cause);
+        this.sqlState = sqlStateOf(cause);
+        this.vendorCode = vendorCodeOf(cause);
+    }
+
+    /**
+     * Creates an exception for a hot error path: without stack trace if
+     * <code>jinah.sql.exception.stackless</code> is enabled, otherwise an ordinary one. The cause,
+     * SQLState and vendor code are kept either way.
+     *
+     * @param message
+     * @param cause
+     * @return
+     */
+    public static JinahSqlException lightweight(final String message, final Throwable cause) {
+
+        return STACKLESS ? new Stackless(message, cause) : new JinahSqlException(message, cause);
+    }
+
+    private static String sqlStateOf(final Throwable cause) {
+
+        if (cause instanceof SQLException) {
+            return ((SQLException) cause).getSQLState();
+        }
+        if (cause instanceof JinahSqlException) {
+            return ((JinahSqlException) cause).sqlState;
+        }
+        return null;
+    }
+
+    private static int vendorCodeOf(final Throwable cause) {
+
+        if (cause instanceof SQLException) {
+            return ((SQLException) cause).getErrorCode();
+        }
+        if (cause instanceof JinahSqlException) {
+            return ((JinahSqlException) cause).vendorCode;
+        }
+        return 0;
+    }
+
+    /**
+     * @return The SQLState of the cause, or <code>null</code>.
+     */
+    public String getSQLState() {
+
+        return sqlState;
+    }
+
+    /**
+     * @return The vendor error code of the cause, or 0.
+     */
+    public int getErrorCode() {
+
+        return vendorCode;
     }
 
-}
\ No newline at end of file
+}
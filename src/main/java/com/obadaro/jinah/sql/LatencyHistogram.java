@@ -0,0 +1,147 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram of durations, with fixed power-of-two buckets: the first holds durations up
+ * to 1 microsecond (1024 ns), each next one doubles the upper bound, and the last holds everything
+ * above 2^33 ns (about 8.6 seconds). Recording is one {@link LongAdder} increment, no allocation.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * log2 of the upper bound of the first bucket.
+     */
+    private static final int FIRST_SHIFT = 10;
+
+    private static final int BUCKETS = 25;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos
+     */
+    public void record(final long nanos) {
+
+        final long n = Math.max(0L, nanos);
+        final int bits = 64 - Long.numberOfLeadingZeros(n > 0 ? n - 1 : 0);
+        buckets[Math.min(BUCKETS - 1, Math.max(0, bits - FIRST_SHIFT))].increment();
+        totalNanos.add(n);
+    }
+
+    /**
+     * @return Number of buckets.
+     */
+    public int getBucketCount() {
+
+        return BUCKETS;
+    }
+
+    /**
+     * @param bucket
+     * @return Upper bound of the bucket, in nanoseconds; {@link Long#MAX_VALUE} for the last one.
+     */
+    public long getUpperBoundNanos(final int bucket) {
+
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << (FIRST_SHIFT + bucket);
+    }
+
+    /**
+     * @param bucket
+     * @return Durations recorded in the bucket.
+     */
+    public long getCount(final int bucket) {
+
+        return buckets[bucket].sum();
+    }
+
+    /**
+     * @return Durations recorded.
+     */
+    public long getCount() {
+
+        long count = 0;
+        for (final LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return Mean of the durations recorded, in nanoseconds, or 0.
+     */
+    public long getMeanNanos() {
+
+        final long count = getCount();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+
+    /**
+     * @param percentile
+     *            Between 0 and 100.
+     * @return Upper bound of the bucket holding the percentile, in nanoseconds, or 0 if nothing was
+     *         recorded.
+     */
+    public long getPercentileNanos(final double percentile) {
+
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(count * Math.max(0, Math.min(100, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return getUpperBoundNanos(i);
+            }
+        }
+        return getUpperBoundNanos(BUCKETS - 1);
+    }
+
+    /**
+     * Zeroes the histogram.
+     */
+    public void reset() {
+
+        for (final LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        totalNanos.reset();
+    }
+
+}
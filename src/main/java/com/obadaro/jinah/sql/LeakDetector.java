@@ -0,0 +1,91 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports resources reclaimed from handlers that were never closed.
+ * <p>
+ * Capturing where a handler started to register resources costs a stack walk, so it is sampled:
+ * with <code>-Djinah.sql.leak.sampling=N</code>, one handler in N (on average) records its
+ * capture site, and a leak of that handler is reported with it. <code>1</code> captures every
+ * handler; <code>0</code> (default) captures none, leaks are then reported without a site.
+ * </p>
+ */
+final class LeakDetector {
+
+    private static final int SAMPLING = Integer.getInteger("jinah.sql.leak.sampling", 0);
+
+    private LeakDetector() {
+        // noop.
+    }
+
+    /**
+     * Decides whether the current handler is sampled and, if it is, captures the current stack.
+     *
+     * @return The capture site, or <code>null</code> if the handler was not sampled.
+     */
+    static Throwable sample() {
+
+        if (SAMPLING <= 0 || (SAMPLING > 1 && ThreadLocalRandom.current().nextInt(SAMPLING) != 0)) {
+            return null;
+        }
+
+        return new Throwable("SqlCloseableHandler resources registered here.");
+    }
+
+    /**
+     * Logs a leaked handler.
+     *
+     * @param statements
+     *            Number of leaked Statements.
+     * @param resultSets
+     *            Number of leaked ResultSets.
+     * @param connections
+     *            Number of leaked Connections.
+     * @param since
+     *            {@link System#nanoTime()} of the first leaked registration.
+     * @param site
+     *            Capture site, or <code>null</code> if the handler was not sampled.
+     */
+    static void report(final int statements, final int resultSets, final int connections, final long since,
+            final Throwable site) {
+
+        final long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+
+        final StringBuilder msg = new StringBuilder(160);
+        msg.append("Cleaning your garbage. Somebody forgot to explicitly close statements/resultSets: ");
+        msg.append(statements).append(" Statement(s), ");
+        msg.append(resultSets).append(" ResultSet(s) and ");
+        msg.append(connections).append(" Connection(s), registered ");
+        msg.append(age).append(" ms ago.");
+        if (site == null) {
+            msg.append(" Set jinah.sql.leak.sampling to capture where they were registered.");
+        }
+
+        final Logger logger = Logger.getLogger("global");
+        logger.log(Level.WARNING, msg.toString(), site);
+    }
+
+}
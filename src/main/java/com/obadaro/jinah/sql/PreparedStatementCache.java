@@ -0,0 +1,130 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * PreparedStatements of a handler scope, by Connection (identity) and SQL text. Backs
+ * {@link SqlCloseableHandler#prepare(Connection, String)}; the statements themselves stay
+ * registered in the handler, which closes them once.
+ * <p>
+ * Most scopes use a single Connection, so the last one used is looked up first, without touching
+ * the identity map.
+ * </p>
+ * <p>
+ * Not thread-safe.
+ * </p>
+ */
+final class PreparedStatementCache {
+
+    private Connection lastConnection;
+
+    private Map<String, PreparedStatement> lastStatements;
+
+    private Map<Connection, Map<String, PreparedStatement>> byConnection;
+
+    /**
+     * @param con
+     * @param sql
+     * @return The cached statement, or <code>null</code>.
+     */
+    PreparedStatement get(final Connection con, final String sql) {
+
+        final Map<String, PreparedStatement> statements = statements(con, false);
+        return statements == null ? null : statements.get(sql);
+    }
+
+    void put(final Connection con, final String sql, final PreparedStatement ps) {
+
+        statements(con, true).put(sql, ps);
+    }
+
+    /**
+     * Forgets the statement, wherever it is cached.
+     *
+     * @param ps
+     */
+    void remove(final Object ps) {
+
+        if (byConnection == null) {
+            if (lastStatements != null) {
+                removeFrom(lastStatements, ps);
+            }
+            return;
+        }
+
+        for (final Map<String, PreparedStatement> statements : byConnection.values()) {
+            removeFrom(statements, ps);
+        }
+    }
+
+    private static void removeFrom(final Map<String, PreparedStatement> statements, final Object ps) {
+
+        final Iterator<PreparedStatement> it = statements.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == ps) {
+                it.remove();
+            }
+        }
+    }
+
+    private Map<String, PreparedStatement> statements(final Connection con, final boolean create) {
+
+        if (con == lastConnection) {
+            return lastStatements;
+        }
+
+        Map<String, PreparedStatement> statements = null;
+        if (byConnection != null) {
+            statements = byConnection.get(con);
+        } else if (lastConnection == null) {
+            if (!create) {
+                return null;
+            }
+            statements = new HashMap<String, PreparedStatement>();
+            lastConnection = con;
+            lastStatements = statements;
+            return statements;
+        }
+
+        if (statements == null) {
+            if (!create) {
+                return null;
+            }
+            if (byConnection == null) {
+                byConnection = new IdentityHashMap<Connection, Map<String, PreparedStatement>>();
+                byConnection.put(lastConnection, lastStatements);
+            }
+            statements = new HashMap<String, PreparedStatement>();
+            byConnection.put(con, statements);
+        }
+
+        lastConnection = con;
+        lastStatements = statements;
+        return statements;
+    }
+
+}
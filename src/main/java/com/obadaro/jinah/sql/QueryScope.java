@@ -0,0 +1,387 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import com.obadaro.jinah.common.util.Preconditions;
+
+/**
+ * Runs independent queries in parallel inside one scope, so the caller waits for the slowest query
+ * instead of the sum of all of them.
+ * <p>
+ * Each query runs on its own thread with its own Connection; the Connection and everything the
+ * query registers go to a {@link ConcurrentSqlCloseableHandler} shared by the scope. If a query
+ * fails, the queries not started yet are skipped, the running ones are cancelled with
+ * {@link SqlCloseableHandler#cancel()}, and from then on the handler of the scope rejects new
+ * registrations with a {@link CancellationException}, cancelling the Statement being registered;
+ * {@link #join()} then throws the first failure. A Statement registered before the failure but
+ * executed after it is only stopped by its query timeout. Closing the
+ * scope waits for every query to leave and closes the handler, so nothing outlives the scope.
+ * Queries must return materialized results, not open ResultSets.
+ * </p>
+ * <p>
+ * By default the queries run on virtual threads, when the JVM has them, or else on a shared pool
+ * of daemon threads.
+ * </p>
+ *
+ * <pre>
+ * try (QueryScope scope = new QueryScope(dataSource)) {
+ *     Future&lt;Customer&gt; customer = scope.fork((h, con) -&gt; findCustomer(h, con, id));
+ *     Future&lt;List&lt;Order&gt;&gt; orders = scope.fork((h, con) -&gt; findOrders(h, con, id));
+ *     scope.join();
+ *     return new Page(customer.get(), orders.get());
+ * }
+ * </pre>
+ */
+public class QueryScope implements AutoCloseable {
+
+    /**
+     * A query run by the scope.
+     *
+     * @param <T>
+     *            Type of the result.
+     */
+    @FunctionalInterface
+    public interface Query<T> {
+
+        /**
+         * @param handler
+         *            Handler of the scope, where the query registers its resources.
+         * @param con
+         *            Connection of this query, already registered.
+         * @return
+         * @throws SQLException
+         */
+        T run(SqlCloseableHandler handler, Connection con) throws SQLException;
+    }
+
+    /**
+     * Lazy holder of the default executor.
+     */
+    private static final class Executor {
+
+        static final ExecutorService DEFAULT = create();
+
+        private static ExecutorService create() {
+
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (final Exception e) {
+                // no virtual threads: platform threads.
+            }
+
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+
+                    final Thread t = new Thread(r, "jinah-sql-fanout-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    private final DataSource dataSource;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentSqlCloseableHandler handler = new ScopeHandler();
+
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    private volatile boolean cancelled;
+
+    private boolean closed;
+
+    /**
+     * Handler of the scope: once the scope is cancelled, every registration fails. The resource is
+     * registered anyway, to be closed with the scope, and a Statement is cancelled first.
+     */
+    private final class ScopeHandler extends ConcurrentSqlCloseableHandler {
+
+        @Override
+        public ResultSet add(final ResultSet rs) {
+
+            return checkNotCancelled(super.add(rs));
+        }
+
+        @Override
+        public ResultSet add(final ResultSet rs, final boolean registraStatement) {
+
+            return checkNotCancelled(super.add(rs, registraStatement));
+        }
+
+        @Override
+        public Statement add(final Statement st) {
+
+            return checkNotCancelled(super.add(st));
+        }
+
+        @Override
+        public PreparedStatement prepare(final Connection con, final String sql) {
+
+            return checkNotCancelled(super.prepare(con, sql));
+        }
+
+        @Override
+        public PreparedStatement prepare(final StatementCache cache, final String sql) {
+
+            return checkNotCancelled(super.prepare(cache, sql));
+        }
+
+        @Override
+        public Connection add(final Connection con, final boolean releaseWithLastStatement) {
+
+            return checkNotCancelled(super.add(con, releaseWithLastStatement));
+        }
+
+        /**
+         * Checked after the registration: either {@link QueryScope#cancel()} finds the resource
+         * registered, or the registration finds the scope cancelled.
+         */
+        private <R> R checkNotCancelled(final R resource) {
+
+            if (cancelled) {
+                if (resource instanceof Statement) {
+                    try {
+                        ((Statement) resource).cancel();
+                    } catch (final SQLException e) {
+                        // noop.
+                    }
+                }
+                throw new CancellationException("Query cancelled: its scope was cancelled.");
+            }
+            return resource;
+        }
+    }
+
+    /**
+     * Constructor, using the default executor.
+     *
+     * @param dataSource
+     *            Source of the Connection of each query.
+     */
+    public QueryScope(final DataSource dataSource) {
+
+        this(dataSource, Executor.DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dataSource
+     *            Source of the Connection of each query.
+     * @param executor
+     *            Runs the queries. Not shut down by the scope.
+     */
+    public QueryScope(final DataSource dataSource, final ExecutorService executor) {
+
+        Preconditions.checkArgument(dataSource != null, "dataSource");
+        Preconditions.checkArgument(executor != null, "executor");
+
+        this.dataSource = dataSource;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a query.
+     *
+     * @param query
+     * @return Its result, available after {@link #join()}.
+     */
+    public <T> Future<T> fork(final Query<T> query) {
+
+        Preconditions.checkArgument(query != null, "query");
+
+        synchronized (futures) {
+            if (closed) {
+                throw new IllegalStateException("QueryScope closed.");
+            }
+            final Future<T> future = executor.submit(new Callable<T>() {
+
+                @Override
+                public T call() throws Exception {
+
+                    return execute(query);
+                }
+            });
+            futures.add(future);
+            return future;
+        }
+    }
+
+    private <T> T execute(final Query<T> query) throws Exception {
+
+        if (cancelled) {
+            throw new CancellationException("Query skipped: its scope was cancelled.");
+        }
+        try {
+            final Connection con = handler.add(dataSource.getConnection());
+            return query.run(handler, con);
+        } catch (final Exception e) {
+            fail(e);
+            throw e;
+        } catch (final Error e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    private void fail(final Throwable e) {
+
+        if (failure.compareAndSet(null, e)) {
+            cancel();
+        }
+    }
+
+    /**
+     * Skips the queries not started yet, cancels the running ones and makes the handler of the
+     * scope reject new registrations.
+     */
+    public void cancel() {
+
+        cancelled = true;
+        handler.cancel();
+    }
+
+    /**
+     * @return The handler shared by the queries of the scope.
+     */
+    public SqlCloseableHandler getHandler() {
+
+        return handler;
+    }
+
+    /**
+     * Waits for every query started so far.
+     *
+     * @throws JinahSqlException
+     *             The first failure, if a query failed; the other queries were cancelled.
+     */
+    public void join() {
+
+        if (awaitAll()) {
+            Thread.currentThread().interrupt();
+            throw new JinahSqlException("Interrupted while waiting for the queries.");
+        }
+
+        final Throwable e = failure.get();
+        if (e != null) {
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new JinahSqlException("Query failed.", e);
+        }
+    }
+
+    /**
+     * Waits for every query. If interrupted, cancels them and keeps waiting: the queries must leave
+     * the handler before the scope is closed.
+     *
+     * @return <code>true</code> if interrupted while waiting.
+     */
+    private boolean awaitAll() {
+
+        boolean interrupted = false;
+        for (int i = 0;; i++) {
+            final Future<?> future;
+            synchronized (futures) {
+                if (i == futures.size()) {
+                    return interrupted;
+                }
+                future = futures.get(i);
+            }
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (final ExecutionException e) {
+                    // noop: the first failure is kept by the scope.
+                    break;
+                } catch (final CancellationException e) {
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                    cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the queries still running, waits for them to leave and closes every resource
+     * registered in the scope.
+     */
+    @Override
+    public void close() {
+
+        synchronized (futures) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        try {
+            boolean running = false;
+            synchronized (futures) {
+                for (final Future<?> future : futures) {
+                    running |= !future.isDone();
+                }
+            }
+            if (running) {
+                cancel();
+            }
+            if (awaitAll()) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            handler.close();
+        }
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * {@link Spliterator} whose rows are read and mapped ahead by a producer thread. Backs
+ * {@link SqlCloseableHandler#stream(ResultSet, RowMapper, int)}.
+ * <p>
+ * The producer fills batches of rows into a ring of two batches, so it reads the next batch (and
+ * waits for the database) while the consumer processes the previous one. Once the producer starts,
+ * only it touches the ResultSet, until it stops. Closing early stops the producer, cancels the
+ * Statement if a fetch is still running, waits for the producer to leave the ResultSet and then
+ * closes it through the handler. The handler does the same when it closes the ResultSet first
+ * (<code>close()</code> of the handler, or the leak reclaimer), so an abandoned stream never
+ * leaves its producer waiting. The producer is never interrupted: some drivers close the
+ * connection when interrupted during I/O.
+ * </p>
+ * <p>
+ * As in {@link ResultSetSpliterator}, the producer samples the decode time of the rows and, if
+ * the SQL is known, reports to {@link FetchSizeTuner} on close.
+ * </p>
+ *
+ * @param <T>
+ *            Type of the mapped rows.
+ */
+final class ReadAheadSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+    /**
+     * Lazy holder of the producer threads.
+     */
+    private static final class Producers {
+
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+
+                final Thread t = new Thread(r, "jinah-sql-readahead-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Rows read by the producer.
+     */
+    private static final class Batch {
+
+        final Object[] rows;
+
+        int count;
+
+        boolean last;
+
+        Throwable failure;
+
+        Batch(final int size) {
+            rows = new Object[size];
+        }
+    }
+
+    private static final int RING_SIZE = 2;
+
+    /**
+     * Longest wait for the producer to leave the ResultSet once stopped, in milliseconds. A driver
+     * that ignores the cancel must not block the close forever: the ResultSet is then closed under
+     * the producer.
+     */
+    private static final long STOP_TIMEOUT = 5000L;
+
+    private final SqlCloseableHandler handler;
+
+    private final Producer producer;
+
+    private Batch current;
+
+    private int index;
+
+    private boolean done;
+
+    ReadAheadSpliterator(final SqlCloseableHandler handler, final ResultSet rs, final RowMapper<T> mapper,
+            final int batchSize, final String sql) {
+
+        super(Long.MAX_VALUE, Spliterator.ORDERED);
+        this.handler = handler;
+        this.producer = new Producer(rs, mapper, batchSize, sql);
+    }
+
+    /**
+     * Registers the producer in the handler, which stops it before closing the ResultSet, and
+     * starts it.
+     */
+    void start() {
+
+        handler.registerReadAhead(producer);
+        producer.start();
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+
+        if (done) {
+            return false;
+        }
+
+        if (current == null || index == current.count) {
+            if (current != null && current.last) {
+                close(false);
+                return false;
+            }
+            current = take();
+            index = 0;
+            if (current.failure != null) {
+                final Throwable failure = current.failure;
+                close(false);
+                if (failure instanceof SQLException) {
+                    throw new JinahSqlException("I can't read the ResultSet.", failure);
+                }
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+            if (current.count == 0) {
+                close(false);
+                return false;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        final T row = (T) current.rows[index];
+        current.rows[index++] = null;
+        action.accept(row);
+        return true;
+    }
+
+    private Batch take() {
+
+        try {
+            while (true) {
+                final Batch batch = producer.ring.poll(100L, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    return batch;
+                }
+                if (producer.cancelled) {
+                    // stopped by the handler: nothing more will come.
+                    final Batch end = new Batch(0);
+                    end.last = true;
+                    return end;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new JinahSqlException("Interrupted while waiting for rows read ahead.", e);
+        }
+    }
+
+    /**
+     * Stops the producer and closes the ResultSet through the handler. Idempotent.
+     */
+    void close() {
+
+        close(true);
+    }
+
+    /**
+     * @param early
+     *            <code>true</code> if the producer may still be reading: its Statement is then
+     *            cancelled.
+     */
+    private void close(final boolean early) {
+
+        if (done) {
+            return;
+        }
+        done = true;
+        current = null;
+
+        producer.stop(early);
+        handler.closeStreamed(producer.rs);
+        producer.observe();
+    }
+
+    /**
+     * Reads the rows. Never refers to the spliterator nor to the handler, so a stream abandoned
+     * without being closed does not keep its handler from the leak reclaimer, which stops the
+     * producer through {@link SqlCloseableHandler.Resources}.
+     */
+    static final class Producer implements Runnable {
+
+        final ResultSet rs;
+
+        /**
+         * Statement of the ResultSet, if known.
+         */
+        final Statement statement;
+
+        private final RowMapper<?> mapper;
+
+        private final int batchSize;
+
+        private final String sql;
+
+        /**
+         * Rows read and sampled decode time, written by the producer; read after it stopped.
+         */
+        private int rowsRead;
+
+        private long sampledNanos;
+
+        private int sampledRows;
+
+        private final ArrayBlockingQueue<Batch> ring = new ArrayBlockingQueue<Batch>(RING_SIZE);
+
+        private volatile boolean cancelled;
+
+        private volatile boolean producing;
+
+        private Future<?> future;
+
+        Producer(final ResultSet rs, final RowMapper<?> mapper, final int batchSize, final String sql) {
+
+            this.rs = rs;
+            this.statement = statementOf(rs);
+            this.mapper = mapper;
+            this.batchSize = batchSize;
+            this.sql = sql;
+        }
+
+        private static Statement statementOf(final ResultSet rs) {
+
+            try {
+                return rs.getStatement();
+            } catch (final SQLException e) {
+                return null;
+            }
+        }
+
+        void start() {
+
+            producing = true;
+            future = Producers.EXECUTOR.submit(this);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                int rowNum = 0;
+                while (!cancelled) {
+                    final Batch batch = new Batch(batchSize);
+                    while (batch.count < batchSize && !cancelled) {
+                        if (!rs.next()) {
+                            batch.last = true;
+                            break;
+                        }
+                        if (sql != null && rowNum % ResultSetSpliterator.SAMPLING == 0) {
+                            final long start = System.nanoTime();
+                            batch.rows[batch.count++] = mapper.mapRow(rs, rowNum++);
+                            sampledNanos += System.nanoTime() - start;
+                            sampledRows++;
+                        } else {
+                            batch.rows[batch.count++] = mapper.mapRow(rs, rowNum++);
+                        }
+                        rowsRead = rowNum;
+                    }
+                    if (!put(batch) || batch.last) {
+                        return;
+                    }
+                }
+            } catch (final Throwable e) {
+                final Batch failed = new Batch(0);
+                failed.last = true;
+                failed.failure = e;
+                put(failed);
+            } finally {
+                producing = false;
+            }
+        }
+
+        /**
+         * Hands the batch to the consumer, waiting for room in the ring unless stopped or the
+         * ResultSet was closed under the producer.
+         *
+         * @param batch
+         * @return <code>false</code> if stopped.
+         */
+        private boolean put(final Batch batch) {
+
+            try {
+                while (!cancelled) {
+                    if (ring.offer(batch, 100L, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                    if (isClosed()) {
+                        cancelled = true;
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        private boolean isClosed() {
+
+            try {
+                return rs.isClosed();
+            } catch (final SQLException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Stops the producer and waits, for at most {@link ReadAheadSpliterator#STOP_TIMEOUT}, for
+         * it to leave the ResultSet. Idempotent; may be called from any thread.
+         *
+         * @param cancelStatement
+         *            <code>true</code> to cancel the Statement if the producer is still reading.
+         */
+        void stop(final boolean cancelStatement) {
+
+            cancelled = true;
+            ring.clear();
+
+            if (cancelStatement && producing && statement != null) {
+                try {
+                    statement.cancel();
+                } catch (final SQLException e) {
+                    // noop.
+                }
+            }
+
+            try {
+                future.get(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ExecutionException e) {
+                // noop: failures are handed over as batches.
+            } catch (final TimeoutException e) {
+                // noop: the ResultSet is closed anyway.
+            }
+            ring.clear();
+        }
+
+        /**
+         * Reports to {@link FetchSizeTuner}, if the SQL is known. Called once stopped.
+         */
+        void observe() {
+
+            if (sql != null) {
+                FetchSizeTuner.getDefault().observe(sql, rowsRead,
+                        sampledRows == 0 ? 0 : sampledNanos / sampledRows);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,505 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, array-backed register of JDBC resources used by {@link SqlCloseableHandler}.
+ * <p>
+ * Resources are compared by identity (driver objects may have expensive or overridden
+ * <code>equals()</code>/<code>hashCode()</code>) and closed in LIFO order, newest first.
+ * Registering a resource only stores a reference: there is no node allocation per
+ * <code>add(...)</code> once the backing array has grown to the working size.
+ * </p>
+ * <p>
+ * Only a registration repeating the newest one is ignored by <code>add(...)</code>; a resource
+ * registered again further down is only detected when the register is closed, so it is closed (and
+ * counted in {@link CloseFailures}) once, at the position of its newest registration.
+ * </p>
+ * <p>
+ * Each registration may carry an owner: the registered Statement that produced a ResultSet. The
+ * owners array is only allocated once an owner is given.
+ * </p>
+ * <p>
+ * Not thread-safe.
+ * </p>
+ *
+ * @param <T>
+ *            Resource type.
+ */
+final class ResourceRegister<T extends AutoCloseable> {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Largest size for which duplicates are searched by comparing every pair, without allocation.
+     */
+    private static final int PAIRWISE_LIMIT = 32;
+
+    private Object[] elements;
+
+    private Object[] owners;
+
+    private int size;
+
+    /**
+     * Registrations and largest size since the last {@link #resetCounts()}, for {@link SqlMetrics}.
+     */
+    private int added;
+
+    private int peak;
+
+    /**
+     * Registers the resource. Registering again the most recent resource is a no-op, which covers
+     * the common case of several ResultSets produced by the same Statement.
+     *
+     * @param resource
+     * @return <code>false</code> if the resource was already on top of the register.
+     */
+    boolean add(final T resource) {
+
+        return add(resource, null);
+    }
+
+    /**
+     * Registers the resource with its owner.
+     *
+     * @param resource
+     * @param owner
+     *            Registered resource that closes this one when closed, or <code>null</code>.
+     * @return <code>false</code> if the resource was already on top of the register.
+     */
+    boolean add(final T resource, final Object owner) {
+
+        Object[] els = elements;
+        if (els == null) {
+            els = elements = new Object[INITIAL_CAPACITY];
+        } else if (size > 0 && els[size - 1] == resource) {
+            if (owner != null) {
+                owners()[size - 1] = owner;
+            }
+            return false;
+        } else if (size == els.length) {
+            els = elements = Arrays.copyOf(els, size << 1);
+            if (owners != null) {
+                owners = Arrays.copyOf(owners, els.length);
+            }
+        }
+
+        if (owner != null) {
+            owners()[size] = owner;
+        }
+        els[size++] = resource;
+        added++;
+        if (size > peak) {
+            peak = size;
+        }
+        return true;
+    }
+
+    /**
+     * @return Registrations since the last {@link #resetCounts()}.
+     */
+    int added() {
+
+        return added;
+    }
+
+    /**
+     * @return Largest size since the last {@link #resetCounts()}.
+     */
+    int peak() {
+
+        return peak;
+    }
+
+    void resetCounts() {
+
+        added = 0;
+        peak = size;
+    }
+
+    private Object[] owners() {
+
+        if (owners == null) {
+            owners = new Object[elements.length];
+        }
+        return owners;
+    }
+
+    /**
+     * Removes every registration of the resource, searching from the newest one.
+     *
+     * @param resource
+     * @return <code>true</code> if the resource was registered.
+     */
+    boolean remove(final Object resource) {
+
+        final Object[] els = elements;
+        boolean removed = false;
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (els[i] == resource) {
+                removeAt(i);
+                removed = true;
+            }
+        }
+
+        return removed;
+    }
+
+    private void removeAt(final int i) {
+
+        final int moved = size - i - 1;
+        if (moved > 0) {
+            System.arraycopy(elements, i + 1, elements, i, moved);
+            if (owners != null) {
+                System.arraycopy(owners, i + 1, owners, i, moved);
+            }
+        }
+        elements[--size] = null;
+        if (owners != null) {
+            owners[size] = null;
+        }
+    }
+
+    /**
+     * @param resource
+     * @return <code>true</code> if the resource is registered.
+     */
+    boolean contains(final Object resource) {
+
+        final Object[] els = elements;
+        for (int i = size - 1; i >= 0; i--) {
+            if (els[i] == resource) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every registration of the resource, after one of them was removed at
+     * <code>from</code> by a loop going from the newest to the oldest.
+     *
+     * @return Registrations removed below <code>from</code>, to adjust the loop.
+     */
+    private int removeAll(final Object resource, final int from) {
+
+        int below = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            if (elements[i] == resource) {
+                removeAt(i);
+                if (i < from) {
+                    below++;
+                }
+            }
+        }
+        return below;
+    }
+
+    /**
+     * Removes the older registrations of the resources registered more than once, keeping the
+     * newest one (and its owner).
+     */
+    private void removeDuplicates() {
+
+        final Object[] els = elements;
+        boolean found = false;
+
+        if (size <= PAIRWISE_LIMIT) {
+            for (int i = size - 1; i > 0; i--) {
+                final Object resource = els[i];
+                if (resource == null) {
+                    continue;
+                }
+                for (int j = i - 1; j >= 0; j--) {
+                    if (els[j] == resource) {
+                        els[j] = null;
+                        found = true;
+                    }
+                }
+            }
+        } else {
+            final Map<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>(size);
+            for (int i = size - 1; i >= 0; i--) {
+                if (seen.put(els[i], Boolean.TRUE) != null) {
+                    els[i] = null;
+                    found = true;
+                }
+            }
+        }
+
+        if (found) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (els[i] != null) {
+                    els[kept] = els[i];
+                    if (owners != null) {
+                        owners[kept] = owners[i];
+                    }
+                    kept++;
+                }
+            }
+            Arrays.fill(els, kept, size, null);
+            if (owners != null) {
+                Arrays.fill(owners, kept, size, null);
+            }
+            size = kept;
+        }
+    }
+
+    /**
+     * Moves every registration to the given (empty) register, leaving this one empty.
+     *
+     * @param target
+     */
+    void transferTo(final ResourceRegister<T> target) {
+
+        target.elements = elements;
+        target.owners = owners;
+        target.size = size;
+        elements = null;
+        owners = null;
+        size = 0;
+    }
+
+    /**
+     * @param i
+     *            Position, from 0 (oldest) to <code>size() - 1</code> (newest).
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    T get(final int i) {
+
+        return (T) elements[i];
+    }
+
+    /**
+     * @param i
+     *            Position, from 0 (oldest) to <code>size() - 1</code> (newest).
+     * @return Owner of the registration, or <code>null</code>.
+     */
+    Object owner(final int i) {
+
+        return owners == null ? null : owners[i];
+    }
+
+    /**
+     * Forgets every registration, without closing anything.
+     */
+    void clear() {
+
+        if (size > 0) {
+            Arrays.fill(elements, 0, size, null);
+            if (owners != null) {
+                Arrays.fill(owners, 0, size, null);
+            }
+            size = 0;
+        }
+    }
+
+    int size() {
+
+        return size;
+    }
+
+    boolean isEmpty() {
+
+        return size == 0;
+    }
+
+    /**
+     * Closes all registered resources, newest first, and clears the register. Close failures are
+     * recorded in <code>failures</code>.
+     *
+     * @param failures
+     */
+    void closeAll(final CloseFailures failures) {
+
+        removeDuplicates();
+        final Object[] els = elements;
+
+        while (size > 0) {
+            final Object resource = els[--size];
+            els[size] = null;
+            if (owners != null) {
+                owners[size] = null;
+            }
+            CloseFailures.close(failures, resource);
+        }
+    }
+
+    /**
+     * Closes, newest first, the resources that will not be closed by their owner: the ones
+     * without an owner, whose owner is not registered in <code>ownerRegister</code>, or whose
+     * driver is known not to cascade the close (see {@link CloseCascade}). The others are kept,
+     * to be settled by {@link #closeLeftByOwners(CloseFailures)} after the owners are closed,
+     * except the ones already closed while their driver is still being learned, which are
+     * dropped.
+     *
+     * @param ownerRegister
+     * @param failures
+     */
+    void closeAllNotOwnedBy(final ResourceRegister<?> ownerRegister, final CloseFailures failures) {
+
+        if (owners == null) {
+            closeAll(failures);
+            return;
+        }
+
+        removeDuplicates();
+        for (int i = size - 1; i >= 0; i--) {
+            final Object resource = elements[i];
+            final Object owner = owners[i];
+            if (owner == null || !ownerRegister.contains(owner) || !CloseCascade.expected(resource)) {
+                removeAt(i);
+                CloseFailures.close(failures, resource);
+            } else if (CloseCascade.closedBeforeOwner(resource)) {
+                removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Drops, before the owner is closed, the resources it owns that are already closed while their
+     * driver is still being learned (see {@link CloseCascade#closedBeforeOwner(Object)}), so
+     * {@link #closeLeftBy(Object, CloseFailures)} only settles the ones that were open.
+     *
+     * @param owner
+     */
+    void dropClosedBy(final Object owner) {
+
+        if (owners == null) {
+            return;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (owners[i] == owner && CloseCascade.closedBeforeOwner(elements[i])) {
+                final Object resource = elements[i];
+                removeAt(i);
+                i -= removeAll(resource, i);
+            }
+        }
+    }
+
+    /**
+     * Settles the resources kept by {@link #closeAllNotOwnedBy(ResourceRegister, CloseFailures)}, once their
+     * owners were closed: the close is only repeated when the driver did not cascade it. Resources
+     * without owner are simply closed.
+     *
+     * @param failures
+     */
+    void closeLeftByOwners(final CloseFailures failures) {
+
+        removeDuplicates();
+        final Object[] els = elements;
+
+        while (size > 0) {
+            final Object resource = els[--size];
+            els[size] = null;
+            Object owner = null;
+            if (owners != null) {
+                owner = owners[size];
+                owners[size] = null;
+            }
+            if (owner == null) {
+                CloseFailures.close(failures, resource);
+            } else {
+                CloseCascade.closeIfNotCascaded(resource, failures);
+            }
+        }
+    }
+
+    /**
+     * Removes and closes the resources owned by a resource that is not closed, e.g. a statement
+     * given back to a {@link StatementCache}, which would otherwise leave them open.
+     *
+     * @param owner
+     * @param failures
+     */
+    void closeOwnedBy(final Object owner, final CloseFailures failures) {
+
+        if (owners == null) {
+            return;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (owners[i] == owner) {
+                final Object resource = elements[i];
+                removeAt(i);
+                i -= removeAll(resource, i);
+                CloseFailures.close(failures, resource);
+            }
+        }
+    }
+
+    /**
+     * Removes the resources owned by the resource, to be settled elsewhere.
+     *
+     * @param owner
+     * @param removed
+     *            Where the removed resources are added.
+     */
+    void removeOwnedBy(final Object owner, final List<Object> removed) {
+
+        if (owners == null) {
+            return;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (owners[i] == owner) {
+                final Object resource = elements[i];
+                removed.add(resource);
+                removeAt(i);
+                i -= removeAll(resource, i);
+            }
+        }
+    }
+
+    /**
+     * Settles the resources owned by a resource that was just closed: they are removed and closed
+     * only if the owner did not cascade the close. Call {@link #dropClosedBy(Object)} before
+     * closing the owner.
+     *
+     * @param owner
+     * @param failures
+     */
+    void closeLeftBy(final Object owner, final CloseFailures failures) {
+
+        if (owners == null) {
+            return;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (owners[i] == owner) {
+                final Object resource = elements[i];
+                removeAt(i);
+                i -= removeAll(resource, i);
+                CloseCascade.closeIfNotCascaded(resource, failures);
+            }
+        }
+    }
+
+}
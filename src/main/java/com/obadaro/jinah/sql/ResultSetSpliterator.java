@@ -0,0 +1,117 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Sequential {@link Spliterator} reading one row of a ResultSet per <code>tryAdvance</code>.
+ * Backs {@link SqlCloseableHandler#stream(ResultSet, RowMapper)}: the ResultSet is closed through
+ * the handler as soon as it is exhausted, or when the stream is closed.
+ * <p>
+ * If the SQL of the ResultSet is known, the rows read and the decode time of one row in
+ * {@value #SAMPLING} are reported to {@link FetchSizeTuner} when the ResultSet is closed.
+ * </p>
+ *
+ * @param <T>
+ *            Type of the mapped rows.
+ */
+final class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+    /**
+     * One row in SAMPLING has its decode time measured.
+     */
+    static final int SAMPLING = 16;
+
+    private final SqlCloseableHandler handler;
+
+    private final ResultSet rs;
+
+    private final RowMapper<T> mapper;
+
+    private final String sql;
+
+    private int rowNum;
+
+    private long sampledNanos;
+
+    private int sampledRows;
+
+    private boolean done;
+
+    ResultSetSpliterator(final SqlCloseableHandler handler, final ResultSet rs, final RowMapper<T> mapper,
+            final String sql) {
+
+        super(Long.MAX_VALUE, Spliterator.ORDERED);
+        this.handler = handler;
+        this.rs = rs;
+        this.mapper = mapper;
+        this.sql = sql;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+
+        if (done) {
+            return false;
+        }
+
+        final T row;
+        try {
+            if (!rs.next()) {
+                close();
+                return false;
+            }
+            if (sql != null && rowNum % SAMPLING == 0) {
+                final long start = System.nanoTime();
+                row = mapper.mapRow(rs, rowNum++);
+                sampledNanos += System.nanoTime() - start;
+                sampledRows++;
+            } else {
+                row = mapper.mapRow(rs, rowNum++);
+            }
+        } catch (final SQLException e) {
+            close();
+            throw new JinahSqlException("I can't read the ResultSet.", e);
+        }
+
+        action.accept(row);
+        return true;
+    }
+
+    /**
+     * Closes the ResultSet through the handler. Idempotent.
+     */
+    void close() {
+
+        if (!done) {
+            done = true;
+            handler.closeStreamed(rs);
+            if (sql != null) {
+                FetchSizeTuner.getDefault().observe(sql, rowNum, sampledRows == 0 ? 0 : sampledNanos / sampledRows);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import com.obadaro.jinah.common.util.Preconditions;
+
+/**
+ * Redoes a unit of SQL work that failed with a retryable {@link SqlErrorCategory}, each attempt with
+ * a fresh {@link SqlCloseableHandler}, closed before the next one.
+ * <p>
+ * Between attempts it waits a random time between zero and an exponentially growing limit ("full
+ * jitter"), so clients that failed together do not retry together. The work must be safe to redo:
+ * typically a whole transaction, with its own connection.
+ * </p>
+ * <p>
+ * The failure of the last attempt is thrown, with the failures of the previous attempts as
+ * suppressed exceptions.
+ * </p>
+ *
+ * <pre>
+ * RetryExecutor retry = new RetryExecutor(3, 50, 1000);
+ * Order order = retry.execute(dataSource, (h, con) -&gt; placeOrder(h, con, cart));
+ * </pre>
+ */
+public class RetryExecutor {
+
+    /**
+     * A unit of work redone by the executor.
+     *
+     * @param <T>
+     *            Type of the result.
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+
+        /**
+         * @param handler
+         *            Handler of this attempt, closed after it.
+         * @return
+         * @throws SQLException
+         */
+        T run(SqlCloseableHandler handler) throws SQLException;
+    }
+
+    private final int maxAttempts;
+
+    private final long baseDelayNanos;
+
+    private final long maxDelayNanos;
+
+    private final Set<SqlErrorCategory> retryOn;
+
+    /**
+     * Constructor. Retries the categories that are {@link SqlErrorCategory#isRetryable()}.
+     *
+     * @param maxAttempts
+     *            Attempts, including the first.
+     * @param baseDelayMillis
+     *            Limit of the wait before the first retry; doubles at each retry.
+     * @param maxDelayMillis
+     *            Maximum limit of a wait.
+     */
+    public RetryExecutor(final int maxAttempts, final long baseDelayMillis, final long maxDelayMillis) {
+
+        this(maxAttempts, baseDelayMillis, maxDelayMillis, retryable());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxAttempts
+     *            Attempts, including the first.
+     * @param baseDelayMillis
+     *            Limit of the wait before the first retry; doubles at each retry.
+     * @param maxDelayMillis
+     *            Maximum limit of a wait.
+     * @param retryOn
+     *            Categories of failure that are retried.
+     */
+    public RetryExecutor(final int maxAttempts, final long baseDelayMillis, final long maxDelayMillis,
+            final Set<SqlErrorCategory> retryOn) {
+
+        Preconditions.checkArgument(maxAttempts > 0, "maxAttempts");
+        Preconditions.checkArgument(baseDelayMillis >= 0 && baseDelayMillis <= maxDelayMillis, "baseDelayMillis");
+        Preconditions.checkArgument(retryOn != null, "retryOn");
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.retryOn = retryOn.isEmpty() ? EnumSet.noneOf(SqlErrorCategory.class) : EnumSet.copyOf(retryOn);
+    }
+
+    private static Set<SqlErrorCategory> retryable() {
+
+        final Set<SqlErrorCategory> retryable = EnumSet.noneOf(SqlErrorCategory.class);
+        for (final SqlErrorCategory category : SqlErrorCategory.values()) {
+            if (category.isRetryable()) {
+                retryable.add(category);
+            }
+        }
+        return retryable;
+    }
+
+    /**
+     * Runs the work with a new Connection of the DataSource at each attempt, registered with the
+     * handler of the attempt.
+     *
+     * @param dataSource
+     * @param query
+     * @return
+     */
+    public <T> T execute(final DataSource dataSource, final QueryScope.Query<T> query) {
+
+        Preconditions.checkArgument(dataSource != null, "dataSource");
+        Preconditions.checkArgument(query != null, "query");
+
+        return execute(new Work<T>() {
+
+            @Override
+            public T run(final SqlCloseableHandler handler) throws SQLException {
+
+                final Connection con = handler.add(dataSource.getConnection());
+                return query.run(handler, con);
+            }
+        });
+    }
+
+    /**
+     * Runs the work, redoing it while it fails with a retried category and attempts remain.
+     *
+     * @param work
+     * @return
+     * @throws JinahSqlException
+     *             The failure of the last attempt.
+     */
+    public <T> T execute(final Work<T> work) {
+
+        Preconditions.checkArgument(work != null, "work");
+
+        RuntimeException previous = null;
+        for (int attempt = 1;; attempt++) {
+
+            RuntimeException failure;
+            final SqlCloseableHandler handler = SqlCloseableHandler.getService();
+            try {
+                return work.run(handler);
+            } catch (final SQLException e) {
+                failure = new JinahSqlException(e.getMessage(), e);
+            } catch (final RuntimeException e) {
+                failure = e;
+            } finally {
+                handler.close();
+            }
+
+            if (previous != null) {
+                failure.addSuppressed(previous);
+            }
+
+            if (attempt >= maxAttempts || !retryOn.contains(SqlErrorCategory.of(failure))) {
+                throw failure;
+            }
+
+            previous = failure;
+            backoff(attempt, baseDelayNanos, maxDelayNanos, failure);
+        }
+    }
+
+    /**
+     * Waits a random time up to <code>min(max, base * 2^(attempt - 1))</code>.
+     *
+     * @param attempt
+     *            Attempt that failed, from 1.
+     * @param baseDelayNanos
+     * @param maxDelayNanos
+     * @param failure
+     *            Failure of the attempt, suppressed by the exception thrown if interrupted.
+     * @throws JinahSqlException
+     *             If interrupted while waiting.
+     */
+    static void backoff(final int attempt, final long baseDelayNanos, final long maxDelayNanos,
+            final Exception failure) {
+
+        final long limit = Math.min(maxDelayNanos, baseDelayNanos << Math.min(attempt - 1, 30));
+        if (limit <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final JinahSqlException interrupted = new JinahSqlException("Interrupted before retrying.", e);
+            interrupted.addSuppressed(failure);
+            throw interrupted;
+        }
+    }
+
+}
@@ -19,72 +19,177 @@
  */
 package com.obadaro.jinah.sql;
 
+import java.lang.ref.Cleaner;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.logging.Logger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.obadaro.jinah.common.util.Preconditions;
 
 /**
  * @author Roberto Badaro
  */
-public class SqlCloseableHandler {
+public class SqlCloseableHandler implements AutoCloseable {
 
     /**
-     * Cache para manter os Statements registrados para a instância corrente. Os
-     * mesmos serão fechados na execução do método <code>close()</code>.
+     * Shared reclaimer for handlers that become unreachable without being closed.
      */
-    private Set<Statement> statementRegister = new HashSet<Statement>(0);
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** Handler not managed by {@link HandlerPool}. */
+    private static final byte UNPOOLED = 0;
+
+    /** Handler handed out by {@link HandlerPool}. */
+    private static final byte LEASED = 1;
+
+    /** Handler given back to {@link HandlerPool} by <code>close()</code>. */
+    private static final byte RETURNED = 2;
+
+    /** Positions of the scope counts filled by {@link #drainScope(long[])}. */
+    private static final int START = 0;
+
+    private static final int STATEMENTS = 1;
+
+    private static final int RESULT_SETS = 2;
+
+    private static final int CONNECTIONS = 3;
+
+    private static final int IGNORED = 4;
+
+    private static final int PEAK_STATEMENTS = 5;
+
+    private static final int PEAK_RESULT_SETS = 6;
+
+    private static final int COUNTS = 7;
+
+    /**
+     * Receiver of the lifecycle events, see {@link #setMetrics(SqlMetrics)}.
+     */
+    private static volatile SqlMetrics metrics = Boolean.getBoolean("jinah.sql.metrics") ? new DefaultSqlMetrics()
+            : SqlMetrics.NOOP;
+
+    /**
+     * Recursos registrados para a instância corrente. Mantidos fora do handler
+     * para que o {@link Cleaner} possa fechá-los sem manter o handler vivo.
+     * Criado somente no primeiro registro: um handler que nada registra não
+     * aloca nada além de si mesmo.
+     */
+    private Resources resources;
+
+    private byte poolState = UNPOOLED;
+
+    /**
+     * Whether the handler was reported opened to the metrics and not yet closed.
+     */
+    private boolean opened;
+
+    /**
+     * Where the handler was given back to the pool. Only kept in pool debug mode.
+     */
+    private Throwable returnSite;
 
     /**
-     * Cache para manter os ResultSets registrados para a instância corrente. Os
-     * mesmos serão fechados na execução do método <code>close()</code>.
+     * Deadline set by {@link #setDeadline(long, TimeUnit)}, if any.
      */
-    private Set<ResultSet> resultSetRegister = new HashSet<ResultSet>(0);
+    private Deadline deadline;
 
     /**
      * Returns a new instance of SqlCloseableHandler.
+     * <p>
+     * If pooling is enabled (see {@link HandlerPool}), returns a recycled handler instead, which is
+     * given back to the pool by {@link #close()}: the caller must not use it after closing it.
+     * </p>
      * 
      * @return
      */
     public static SqlCloseableHandler getService() {
 
-        return new SqlCloseableHandler();
+        if (!HandlerPool.ENABLED) {
+            return new SqlCloseableHandler();
+        }
+
+        SqlCloseableHandler handler = HandlerPool.poll();
+        if (handler == null) {
+            // reported by the constructor.
+            handler = new SqlCloseableHandler();
+        } else {
+            metrics.handlerOpened();
+            handler.opened = true;
+        }
+
+        handler.poolState = LEASED;
+        return handler;
     }
 
     /**
      * Constructor.
      */
     public SqlCloseableHandler() {
+        metrics.handlerOpened();
+        opened = true;
+    }
+
+    /**
+     * Constructor of the stripes of a {@link ConcurrentSqlCloseableHandler}, which are not reported
+     * to the metrics as handlers.
+     * 
+     * @param stripe
+     */
+    SqlCloseableHandler(final boolean stripe) {
         // noop.
     }
 
     /**
-     * Verifies pending resources to close before execute super.finalize(). Is not expected that we
-     * have resources to close here. If it occurs, a developer forgot to call
-     * {@link SqlCloseableHandler#close()}.
+     * Installs the receiver of the lifecycle events of all handlers. Without it, or with
+     * {@link SqlMetrics#NOOP}, nothing is measured.
      * 
-     * @see java.lang.Object#finalize()
+     * @param metrics
      */
-    @Override
-    protected void finalize() throws Throwable {
+    public static void setMetrics(final SqlMetrics metrics) {
+
+        Preconditions.checkArgument(metrics != null, "metrics");
+        SqlCloseableHandler.metrics = metrics;
+    }
 
-        if ((statementRegister != null && statementRegister.size() > 0)
-                || (resultSetRegister != null && resultSetRegister.size() > 0)) {
+    /**
+     * @return The installed receiver of the lifecycle events.
+     */
+    public static SqlMetrics getMetrics() {
 
-            final Logger logger = Logger.getLogger("global");
-            logger.warning("Cleaning your garbage. Somebody forgot to explicitly close statements/resultSets.");
+        return metrics;
+    }
 
-            close();
-        }
+    /**
+     * Returns the registers of this handler, creating them (and the leak reclaimer) on the first
+     * registration.
+     * 
+     * @return
+     */
+    private Resources resources() {
 
-        statementRegister = null;
-        resultSetRegister = null;
+        checkNotReturned();
 
-        super.finalize();
+        Resources r = resources;
+        if (r == null) {
+            r = new Resources();
+            CLEANER.register(this, r);
+            HandlerCensus.track(this, r);
+            resources = r;
+        }
+        if (r.isEmpty()) {
+            r.open();
+        }
+        return r;
     }
 
     /**
@@ -97,7 +202,9 @@ public class SqlCloseableHandler {
     public ResultSet add(final ResultSet rs) {
 
         Preconditions.checkArgument(rs != null, "rs");
-        resultSetRegister.add(rs);
+        final Resources r = resources();
+        r.resultSetRegister.add(rs);
+        SqlEvents.registered("ResultSet", null, r);
         return rs;
     }
 
@@ -110,29 +217,107 @@ public class SqlCloseableHandler {
      * @param registraStatement
      *            Se <code>true</code>, registra o Statement que gerou o
      *            ResultSet informado se o mesmo for retornado pelo método
-     *            <code>{@link ResultSet#getStatement()}</code>.
+     *            <code>{@link ResultSet#getStatement()}</code>. O ResultSet
+     *            fica então a cargo do fechamento do Statement, que pela
+     *            especificação JDBC o fecha também (ver {@link CloseCascade}).
      * @return
      */
     public ResultSet add(final ResultSet rs, final boolean registraStatement) {
 
-        add(rs);
+        if (!registraStatement) {
+            return add(rs);
+        }
 
-        if (registraStatement) {
-            Statement stOrigem = null;
-            try {
-                stOrigem = rs.getStatement();
-            } catch (final SQLException e) {
-                throw new JinahSqlException("I can't retrieve the Statement that produces the ResultSet.", e);
-            }
+        Preconditions.checkArgument(rs != null, "rs");
 
-            if (stOrigem != null) {
-                statementRegister.add(stOrigem);
+        Statement stOrigem = null;
+        try {
+            stOrigem = rs.getStatement();
+        } catch (final SQLException e) {
+            add(rs);
+            throw new JinahSqlException("I can't retrieve the Statement that produces the ResultSet.", e);
+        }
+
+        final Resources r = resources();
+        if (stOrigem != null && r.leaseRegister.contains(stOrigem)) {
+            // a cached statement is given back, not closed: the ResultSet is closed explicitly,
+            // with the statement by close(Statement) or as not owned by a registered Statement.
+            r.resultSetRegister.add(rs, stOrigem);
+        } else {
+            r.resultSetRegister.add(rs, stOrigem);
+            if (stOrigem != null && !r.statementRegister.contains(stOrigem)) {
+                r.statementRegister.add(stOrigem);
             }
         }
+        SqlEvents.registered("ResultSet", null, r);
 
         return rs;
     }
 
+    /**
+     * Registra o ResultSet e retorna um Stream que o percorre sob demanda, uma
+     * linha por vez, sem carregar o resultado em memória.
+     * <p>
+     * O ResultSet é fechado pelo handler assim que for esgotado, quando o
+     * Stream for fechado (use <i>try-with-resources</i> se o consumo puder
+     * ser interrompido) ou, em último caso, no <code>close()</code>. O
+     * Stream é sequencial e só pode ser consumido pela thread do ResultSet.
+     * </p>
+     * 
+     * @param rs
+     * @param mapper
+     *            Converte cada linha.
+     * @return
+     */
+    public <T> Stream<T> stream(final ResultSet rs, final RowMapper<T> mapper) {
+
+        Preconditions.checkArgument(mapper != null, "mapper");
+        add(rs);
+
+        final ResultSetSpliterator<T> spliterator = new ResultSetSpliterator<T>(this, rs, mapper, sqlOf(rs));
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * Como {@link #stream(ResultSet, RowMapper)}, mas com leitura antecipada:
+     * uma thread produtora lê e converte lotes de <code>batchSize</code>
+     * linhas enquanto o consumidor processa o lote anterior (ver
+     * {@link ReadAheadSpliterator}).
+     * <p>
+     * O mapper é executado pela thread produtora. Feche o Stream se o consumo
+     * puder ser interrompido: o fechamento antecipado para a produtora, cancela
+     * o Statement em execução e fecha o ResultSet.
+     * </p>
+     * 
+     * @param rs
+     * @param mapper
+     *            Converte cada linha.
+     * @param batchSize
+     *            Linhas por lote; use o fetch size do Statement.
+     * @return
+     */
+    public <T> Stream<T> stream(final ResultSet rs, final RowMapper<T> mapper, final int batchSize) {
+
+        Preconditions.checkArgument(mapper != null, "mapper");
+        Preconditions.checkArgument(batchSize > 0, "batchSize");
+        add(rs);
+
+        final ReadAheadSpliterator<T> spliterator = new ReadAheadSpliterator<T>(this, rs, mapper, batchSize,
+                sqlOf(rs));
+        spliterator.start();
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * Registers the producer of a read-ahead stream, to be stopped before its ResultSet is closed.
+     * 
+     * @param producer
+     */
+    void registerReadAhead(final ReadAheadSpliterator.Producer producer) {
+
+        resources().readAheads().add(producer);
+    }
+
     /**
      * Registra o statement para ser finalizado na execução do método
      * <code>close()</code>.
@@ -143,98 +328,1343 @@ public class SqlCloseableHandler {
     public Statement add(final Statement st) {
 
         Preconditions.checkArgument(st != null, "st");
-        statementRegister.add(st);
+        final Resources r = resources();
+        r.statementRegister.add(st);
+        SqlEvents.registered("Statement", null, r);
+        applyDeadline(st);
         return st;
     }
 
     /**
-     * Closes all registered ResultSet and Statement.
+     * Prepara o statement e o registra para ser finalizado na execução do
+     * método <code>close()</code>.
+     * <p>
+     * Dentro do mesmo escopo, chamadas repetidas com a mesma conexão e o mesmo
+     * SQL retornam o mesmo PreparedStatement, com os parâmetros limpos, sem
+     * prepará-lo de novo. O statement é fechado uma única vez, no
+     * <code>close()</code>. Não use um PreparedStatement obtido aqui
+     * depois de uma nova chamada com o mesmo SQL: ambos são o mesmo objeto.
+     * </p>
+     * 
+     * @param con
+     * @param sql
+     * @return Retorna o PreparedStatement registrado.
      */
-    public void close() {
+    public PreparedStatement prepare(final Connection con, final String sql) {
+
+        Preconditions.checkArgument(con != null, "con");
+        Preconditions.checkArgument(sql != null, "sql");
+
+        final PreparedStatement ps = preparedFor(con, sql);
+        if (ps != null) {
+            if (reset(ps)) {
+                return reuse(ps, sql);
+            }
+            forgetPrepared(ps);
+        }
+
+        return registerPrepared(con, sql, prepareStatement(con, sql));
+    }
+
+    /**
+     * @param con
+     * @param sql
+     * @return The statement prepared in the current scope for the Connection and SQL, or
+     *         <code>null</code>.
+     */
+    PreparedStatement preparedFor(final Connection con, final String sql) {
+
+        return resources().prepared().get(con, sql);
+    }
+
+    /**
+     * Clears the parameters of a statement prepared earlier in the scope.
+     * 
+     * @param ps
+     * @return <code>false</code> if it was closed behind our back and must be prepared again.
+     */
+    static boolean reset(final PreparedStatement ps) {
 
         try {
-            closeResultSets();
-        } catch (final Exception e) {
-            // noop.
+            ps.clearParameters();
+            return true;
+        } catch (final SQLException e) {
+            return false;
         }
+    }
+
+    /**
+     * Hands out again a statement prepared earlier in the scope.
+     * 
+     * @param ps
+     * @param sql
+     * @return
+     */
+    PreparedStatement reuse(final PreparedStatement ps, final String sql) {
+
+        tune(resources(), ps, sql);
+        applyDeadline(ps);
+        return ps;
+    }
+
+    /**
+     * Forgets a statement prepared earlier in the scope that is no longer usable.
+     * 
+     * @param ps
+     */
+    void forgetPrepared(final PreparedStatement ps) {
+
+        final Resources r = resources();
+        r.statementRegister.remove(ps);
+        r.prepared().remove(ps);
+    }
+
+    /**
+     * @param con
+     * @param sql
+     * @return A new PreparedStatement, not registered.
+     */
+    static PreparedStatement prepareStatement(final Connection con, final String sql) {
 
         try {
-            closeStatements();
-        } catch (final Exception e) {
-            // noop.
+            return con.prepareStatement(sql);
+        } catch (final SQLException e) {
+            throw new JinahSqlException("I can't prepare the statement.", e);
         }
     }
 
     /**
-     * Remove o statement do cache, evitando o fechamento automático do mesmo.
-     * <p>
-     * Deve-se usar com parcimônia. Os casos onde não se pretende o fechamento
-     * automático é quando o Statement for objeto de retorno de um método, por
-     * exemplo, ficando a cargo do método chamador cuidar da finalização do
-     * ciclo de vida do recurso.
-     * </p>
+     * Registers a statement just prepared, to be handed out again for the same Connection and SQL
+     * in the scope.
+     * 
+     * @param con
+     * @param sql
+     * @param ps
+     * @return
+     */
+    PreparedStatement registerPrepared(final Connection con, final String sql, final PreparedStatement ps) {
+
+        final Resources r = resources();
+        r.statementRegister.add(ps);
+        r.prepared().put(con, sql, ps);
+        SqlEvents.registered("PreparedStatement", sql, r);
+        tune(r, ps, sql);
+        applyDeadline(ps);
+        return ps;
+    }
+
+    /**
+     * Obtém o statement do cache da conexão e o registra para ser devolvido ao
+     * cache (e não fechado) na execução do método <code>close()</code>.
+     * 
+     * @param cache
+     *            Cache de statements da conexão.
+     * @param sql
+     * @return Retorna o PreparedStatement registrado.
+     */
+    public PreparedStatement prepare(final StatementCache cache, final String sql) {
+
+        Preconditions.checkArgument(cache != null, "cache");
+
+        return registerLease(cache, sql, cache.acquire(sql));
+    }
+
+    /**
+     * Registers a statement just leased from the cache, to be given back to it.
+     * 
+     * @param cache
+     * @param sql
+     * @param ps
+     * @return
+     */
+    PreparedStatement registerLease(final StatementCache cache, final String sql, final PreparedStatement ps) {
+
+        final Resources r = resources();
+        r.leaseRegister.add(ps, cache);
+        SqlEvents.registered("PreparedStatement (cached)", sql, r);
+        tune(r, ps, sql);
+        applyDeadline(ps);
+        return ps;
+    }
+
+    /**
+     * Applies the fetch size learned by {@link FetchSizeTuner} for the SQL, if adaptive fetch size
+     * is enabled, and remembers the SQL of the statement so its ResultSets can report back.
+     * 
+     * @param r
+     * @param ps
+     * @param sql
+     */
+    private static void tune(final Resources r, final PreparedStatement ps, final String sql) {
+
+        if (!FetchSizeTuner.ENABLED) {
+            return;
+        }
+
+        r.sqlTexts().put(ps, sql);
+
+        final int fetchSize = FetchSizeTuner.getDefault().fetchSize(sql);
+        if (fetchSize > 0) {
+            try {
+                ps.setFetchSize(fetchSize);
+            } catch (final SQLException e) {
+                // noop: keeps the driver default.
+            }
+        }
+    }
+
+    /**
+     * Sets the query timeout of a statement just registered to the time left until the deadline,
+     * if there is one.
      * 
      * @param st
      */
-    public void ignore(final Statement st) {
+    private void applyDeadline(final Statement st) {
 
-        if (st != null) {
-            statementRegister.remove(st);
+        if (deadline != null) {
+            deadline.apply(st);
         }
     }
 
     /**
-     * Remove o ResultSet do cache, evitando o fechamento automático do mesmo.
-     * <p>
-     * Deve-se usar com parcimônia. Os casos onde não se pretende o fechamento
-     * automático é quando o ResultSet for objeto de retorno de um método, por
-     * exemplo, ficando a cargo do método chamador cuidar da finalização do
-     * ciclo de vida do recurso.
-     * </p>
+     * Sets a deadline for the work of this handler. Every registered Statement, the ones already
+     * registered and the ones registered or prepared from now on, gets the time remaining as query
+     * timeout (rounded up to seconds); registering a Statement after the deadline throws a
+     * {@link JinahSqlException} caused by a {@link java.sql.SQLTimeoutException}. When the deadline
+     * passes, the Statements still registered are cancelled from a timer thread. The deadline ends
+     * with {@link #close()}.
+     * 
+     * @param timeout
+     * @param unit
+     */
+    public void setDeadline(final long timeout, final TimeUnit unit) {
+
+        Preconditions.checkArgument(timeout >= 0, "timeout");
+        Preconditions.checkArgument(unit != null, "unit");
+        checkNotReturned();
+
+        clearDeadline();
+        deadline = new Deadline(unit.toNanos(timeout));
+        trackRegistered();
+    }
+
+    /**
+     * Removes the deadline, if any. Query timeouts already set are kept.
+     */
+    public void clearDeadline() {
+
+        if (deadline != null) {
+            deadline.cancel();
+            deadline = null;
+        }
+    }
+
+    /**
+     * @return The deadline, or <code>null</code>.
+     */
+    Deadline getDeadline() {
+
+        return deadline;
+    }
+
+    /**
+     * Shares the deadline of another handler, without a timer of its own.
      * 
+     * @param deadline
+     */
+    void inheritDeadline(final Deadline deadline) {
+
+        this.deadline = deadline;
+        trackRegistered();
+    }
+
+    /**
+     * Puts the Statements already registered under the deadline, if any.
+     */
+    private void trackRegistered() {
+
+        final Resources r = resources;
+        if (deadline == null || r == null) {
+            return;
+        }
+        for (int i = 0; i < r.statementRegister.size(); i++) {
+            deadline.track(r.statementRegister.get(i));
+        }
+        for (int i = 0; i < r.leaseRegister.size(); i++) {
+            deadline.track(r.leaseRegister.get(i));
+        }
+    }
+
+    /**
      * @param rs
+     * @return The SQL of the statement of the ResultSet, if it was prepared by this handler with
+     *         adaptive fetch size enabled, otherwise <code>null</code>.
      */
-    public void ignore(final ResultSet rs) {
+    String sqlOf(final ResultSet rs) {
+
+        if (!FetchSizeTuner.ENABLED || resources == null || resources.sqlTexts == null) {
+            return null;
+        }
 
-        if (rs != null) {
-            resultSetRegister.remove(rs);
+        try {
+            return resources.sqlTexts.get(rs.getStatement());
+        } catch (final SQLException e) {
+            return null;
         }
     }
 
     /**
-     * Closes registered Statements.
+     * Registra a conexão para ser finalizada na execução do método
+     * <code>close()</code>, depois de todos os ResultSets e Statements.
+     * 
+     * @param con
+     * @return Retorna a conexão registrada.
      */
-    protected void closeStatements() {
+    public Connection add(final Connection con) {
 
-        for (final Statement st : statementRegister) {
-            if (st != null) {
-                try {
-                    st.close();
-                } catch (final SQLException e) {
-                    // noop.
-                }
+        return add(con, false);
+    }
+
+    /**
+     * Registra a conexão para ser finalizada na execução do método
+     * <code>close()</code>, depois de todos os ResultSets e Statements.
+     * 
+     * @param con
+     *            Connection
+     * @param releaseWithLastStatement
+     *            Se <code>true</code>, a conexão é fechada (devolvida ao pool)
+     *            assim que o último Statement registrado desta conexão for
+     *            fechado por {@link #close(Statement)}, sem esperar pelo
+     *            <code>close()</code> do handler.
+     * @return Retorna a conexão registrada.
+     */
+    public Connection add(final Connection con, final boolean releaseWithLastStatement) {
+
+        Preconditions.checkArgument(con != null, "con");
+        final Resources r = resources();
+        r.connectionRegister.add(con);
+        if (releaseWithLastStatement) {
+            r.earlyRelease().add(con);
+        }
+        SqlEvents.registered("Connection", null, r);
+        return con;
+    }
+
+    /**
+     * Closes the registered Statement now, with the registered ResultSets it produced, instead of
+     * waiting for {@link #close()}. If it was the last registered Statement of a Connection
+     * registered with <code>releaseWithLastStatement</code>, the Connection is closed too. A
+     * statement obtained from a {@link StatementCache} is given back to the cache instead.
+     * 
+     * @param st
+     */
+    public void close(final Statement st) {
+
+        checkNotReturned();
+
+        if (st == null) {
+            return;
+        }
+
+        final Resources r = resources;
+        if (deadline != null) {
+            deadline.forget(st);
+        }
+        if (r != null) {
+            r.stopReadAheads(st);
+        }
+        if (r != null && r.returnLease(st)) {
+            return;
+        }
+        final SqlEvents.ResourceClose event = SqlEvents.beginResourceClose("Statement",
+                r != null && r.sqlTexts != null ? r.sqlTexts.get(st) : null);
+        Connection con = null;
+        if (r != null) {
+            con = r.releasedWith(st);
+            r.forget(st);
+            r.resultSetRegister.dropClosedBy(st);
+        }
+
+        CloseFailures.close(r != null ? r.failures : null, st);
+
+        if (r != null) {
+            r.resultSetRegister.closeLeftBy(st, r.failures);
+            if (con != null) {
+                r.releaseIfUnused(con);
             }
         }
 
-        statementRegister.clear();
+        if (event != null) {
+            event.commit();
+        }
     }
 
     /**
-     * Closes registered ResultSets.
+     * Closes the registered ResultSet now, instead of waiting for {@link #close()}.
+     * 
+     * @param rs
      */
-    protected void closeResultSets() {
+    public void close(final ResultSet rs) {
 
-        for (final ResultSet rs : resultSetRegister) {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (final SQLException e) {
-                    // noop.
-                }
-            }
+        checkNotReturned();
+
+        if (rs == null) {
+            return;
+        }
+
+        final SqlEvents.ResourceClose event = SqlEvents.beginResourceClose("ResultSet", null);
+        final Resources r = resources;
+        if (r != null) {
+            r.stopReadAhead(rs);
+            r.resultSetRegister.remove(rs);
         }
 
-        resultSetRegister.clear();
+        CloseFailures.close(r != null ? r.failures : null, rs);
+
+        if (event != null) {
+            event.commit();
+        }
+    }
+
+    /**
+     * Closes the ResultSet of a stream. Does nothing if the handler was already given back to the
+     * pool: its <code>close()</code> released the ResultSet, and the stream may be closed after
+     * it.
+     * 
+     * @param rs
+     */
+    void closeStreamed(final ResultSet rs) {
+
+        if (poolState != RETURNED) {
+            close(rs);
+        }
+    }
+
+    /**
+     * Cancels the registered Statements that are executing, with {@link Statement#cancel()}. Meant
+     * to be called from another thread; the Statements stay registered, to be closed later.
+     */
+    public void cancel() {
+
+        checkNotReturned();
+
+        final Resources r = resources;
+        if (r != null) {
+            r.cancel();
+        }
+    }
+
+    /**
+     * Closes all registered ResultSet, Statement and Connection, in this order.
+     * <p>
+     * Idempotent: calling it again, or on a handler that never registered anything, returns
+     * immediately. The handler may be reused after being closed, unless it was obtained from the
+     * pool, in which case it is given back to the pool here.
+     * </p>
+     */
+    @Override
+    public void close() {
+
+        if (poolState == RETURNED) {
+            if (HandlerPool.DEBUG) {
+                checkNotReturned();
+            }
+            return;
+        }
+
+        clearDeadline();
+
+        final SqlMetrics m = metrics;
+        final long start = m == SqlMetrics.NOOP ? 0L : System.nanoTime();
+        final SqlEvents.Close event = SqlEvents.beginClose();
+        if (event != null) {
+            describe(event);
+        }
+
+        if (resources != null && !resources.isEmpty()) {
+
+            try {
+                closeResultSets();
+            } catch (final Exception e) {
+                // noop.
+            }
+
+            try {
+                closeStatements();
+            } catch (final Exception e) {
+                // noop.
+            }
+
+            try {
+                closeConnections();
+            } catch (final Exception e) {
+                // noop.
+            }
+        }
+
+        flushCloseFailures();
+        if (event != null) {
+            event.commit();
+        }
+        endScope(m, start);
+        release();
+    }
+
+    /**
+     * Like {@link #close()}, but fails if any resource failed to close.
+     * 
+     * @throws JinahSqlException
+     *             With the individual close failures as suppressed exceptions.
+     */
+    public void closeAndReport() {
+
+        collectCloseFailures();
+        final List<Exception> failures;
+        try {
+            close();
+        } finally {
+            failures = drainCloseFailures();
+        }
+
+        if (!failures.isEmpty()) {
+            final JinahSqlException e = new JinahSqlException(failures.size() + " resource(s) failed to close.");
+            for (final Exception failure : failures) {
+                e.addSuppressed(failure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts keeping the close failures, for {@link #closeAndReport()}.
+     */
+    void collectCloseFailures() {
+
+        if (resources != null) {
+            resources.failures.collect();
+        }
+    }
+
+    /**
+     * @return The close failures kept since {@link #collectCloseFailures()}.
+     */
+    List<Exception> drainCloseFailures() {
+
+        return resources == null ? Collections.<Exception> emptyList() : resources.failures.drain();
+    }
+
+    /**
+     * Adds the close counts of this handler to the process-wide totals of {@link CloseFailures}.
+     */
+    void flushCloseFailures() {
+
+        if (resources != null) {
+            resources.failures.flush();
+        }
+    }
+
+    /**
+     * @return Closes attempted by this handler, not counting the ones done by
+     *         {@link #closeAsync()}.
+     */
+    public long getAttemptedCloses() {
+
+        return resources == null ? 0 : resources.failures.attempted();
+    }
+
+    /**
+     * @return Closes that failed in this handler, not counting the ones done by
+     *         {@link #closeAsync()}.
+     */
+    public long getFailedCloses() {
+
+        return resources == null ? 0 : resources.failures.failed();
+    }
+
+    /**
+     * Detaches all registered ResultSet and Statement and closes them on a background executor
+     * (see {@link AsyncCloser}), so the caller does not wait for drivers that free server-side
+     * cursors with a round-trip. If the executor is saturated, the calling thread closes them
+     * itself.
+     * <p>
+     * Like {@link #close()}, it is idempotent, the handler may be reused afterwards and a pooled
+     * handler is given back to the pool.
+     * </p>
+     */
+    public void closeAsync() {
+
+        if (poolState == RETURNED) {
+            if (HandlerPool.DEBUG) {
+                checkNotReturned();
+            }
+            return;
+        }
+
+        clearDeadline();
+
+        final SqlMetrics m = metrics;
+        final long start = m == SqlMetrics.NOOP ? 0L : System.nanoTime();
+
+        final Resources detached = detachResources();
+        if (detached != null) {
+            AsyncCloser.close(detached);
+        }
+
+        flushCloseFailures();
+        endScope(m, start);
+        release();
+    }
+
+    /**
+     * Fills the Close event with what is about to be closed.
+     * 
+     * @param event
+     */
+    void describe(final SqlEvents.Close event) {
+
+        final Resources r = resources;
+        if (r != null) {
+            event.statements += r.statementRegister.size() + r.leaseRegister.size();
+            event.resultSets += r.resultSetRegister.size();
+            event.connections += r.connectionRegister.size();
+            if (r.scoped) {
+                event.lifetime = Math.max(event.lifetime, System.nanoTime() - r.scopeStart);
+            }
+        }
+    }
+
+    /**
+     * Reports the first close of the handler to the metrics and ends its scope, reporting the
+     * scope too if it registered anything.
+     * 
+     * @param m
+     *            Metrics read when the close started.
+     * @param closeStart
+     *            {@link System#nanoTime()} when the close started, if measured.
+     */
+    final void endScope(final SqlMetrics m, final long closeStart) {
+
+        final boolean first = opened;
+        opened = false;
+
+        if (m == SqlMetrics.NOOP) {
+            drainScope(null);
+            return;
+        }
+
+        if (first) {
+            m.handlerClosed();
+        }
+
+        final long[] counts = new long[COUNTS];
+        counts[START] = Long.MAX_VALUE;
+        if (!drainScope(counts)) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        m.scopeClosed(now - counts[START], now - closeStart);
+        m.registered((int) counts[STATEMENTS], (int) counts[RESULT_SETS], (int) counts[CONNECTIONS]);
+        m.peakOpen((int) counts[PEAK_STATEMENTS], (int) counts[PEAK_RESULT_SETS]);
+        if (counts[IGNORED] > 0) {
+            m.ignored((int) counts[IGNORED]);
+        }
+    }
+
+    /**
+     * Adds the counts of the current scope to <code>counts</code> and starts a new scope.
+     * 
+     * @param counts
+     *            Accumulated counts, or <code>null</code> to only start a new scope.
+     * @return <code>false</code> if nothing was registered since the scope started.
+     */
+    boolean drainScope(final long[] counts) {
+
+        final Resources r = resources;
+        if (r == null || !r.scoped) {
+            return false;
+        }
+        r.scoped = false;
+
+        if (counts != null) {
+            counts[START] = Math.min(counts[START], r.scopeStart);
+            counts[STATEMENTS] += r.statementRegister.added() + r.leaseRegister.added();
+            counts[RESULT_SETS] += r.resultSetRegister.added();
+            counts[CONNECTIONS] += r.connectionRegister.added();
+            counts[IGNORED] += r.ignored;
+            counts[PEAK_STATEMENTS] += r.statementRegister.peak() + r.leaseRegister.peak();
+            counts[PEAK_RESULT_SETS] += r.resultSetRegister.peak();
+        }
+        return true;
+    }
+
+    /**
+     * Moves the registered resources out of this handler, which is left empty.
+     * 
+     * @return The detached resources, or <code>null</code> if there was nothing registered.
+     */
+    Resources detachResources() {
+
+        if (resources == null || resources.isEmpty()) {
+            return null;
+        }
+        return resources.detach();
+    }
+
+    /**
+     * Gives a pooled handler back to the pool.
+     */
+    private void release() {
+
+        if (poolState == LEASED) {
+            poolState = RETURNED;
+            if (HandlerPool.DEBUG) {
+                returnSite = new Throwable("Handler returned to the pool here.");
+            }
+            HandlerPool.offer(this);
+        }
+    }
+
+    /**
+     * Fails if this handler was already given back to the pool.
+     */
+    private void checkNotReturned() {
+
+        if (poolState == RETURNED) {
+            throw new IllegalStateException("SqlCloseableHandler used after being returned to the pool.",
+                    returnSite);
+        }
+    }
+
+    /**
+     * Remove o statement do cache, evitando o fechamento automático do mesmo.
+     * <p>
+     * Deve-se usar com parcimônia. Os casos onde não se pretende o fechamento
+     * automático é quando o Statement for objeto de retorno de um método, por
+     * exemplo, ficando a cargo do método chamador cuidar da finalização do
+     * ciclo de vida do recurso.
+     * </p>
+     * 
+     * @param st
+     */
+    public void ignore(final Statement st) {
+
+        checkNotReturned();
+
+        if (st != null && deadline != null) {
+            deadline.forget(st);
+        }
+        if (st != null && resources != null && resources.forget(st)) {
+            resources.ignored++;
+            SqlEvents.ignored("Statement");
+        }
+    }
+
+    /**
+     * Remove o ResultSet do cache, evitando o fechamento automático do mesmo.
+     * <p>
+     * Deve-se usar com parcimônia. Os casos onde não se pretende o fechamento
+     * automático é quando o ResultSet for objeto de retorno de um método, por
+     * exemplo, ficando a cargo do método chamador cuidar da finalização do
+     * ciclo de vida do recurso.
+     * </p>
+     * 
+     * @param rs
+     */
+    public void ignore(final ResultSet rs) {
+
+        checkNotReturned();
+
+        if (rs != null && resources != null && resources.resultSetRegister.remove(rs)) {
+            resources.ignored++;
+            resources.forgetReadAhead(rs);
+            SqlEvents.ignored("ResultSet");
+        }
+    }
+
+    /**
+     * Removes a Statement closed elsewhere (by another stripe of a
+     * {@link ConcurrentSqlCloseableHandler}) from the registers. Unlike
+     * {@link #ignore(Statement)}, it is not reported as ignored.
+     * 
+     * @param st
+     */
+    void forget(final Statement st) {
+
+        if (deadline != null) {
+            deadline.forget(st);
+        }
+        if (resources != null) {
+            resources.forget(st);
+        }
+    }
+
+    /**
+     * Removes a ResultSet closed elsewhere from the registers, see {@link #forget(Statement)}.
+     * 
+     * @param rs
+     */
+    void forget(final ResultSet rs) {
+
+        if (resources != null && resources.resultSetRegister.remove(rs)) {
+            resources.forgetReadAhead(rs);
+        }
+    }
+
+    /**
+     * Takes the Statement out of the registers, with what must be settled when it is closed: its
+     * read-ahead producers, the cache it is leased from and its registered ResultSets. The close
+     * itself is left to the caller, see {@link EarlyClose}.
+     * 
+     * @param st
+     * @param close
+     */
+    void detach(final Statement st, final EarlyClose close) {
+
+        final Resources r = resources;
+        if (r != null) {
+            if (r.statementRegister.contains(st) || r.leaseRegister.contains(st)) {
+                close.registeredIn(this);
+            }
+            r.detach(st, close);
+        }
+        forget(st);
+    }
+
+    /**
+     * Takes the ResultSet out of the registers, with its read-ahead producer, see
+     * {@link #detach(Statement, EarlyClose)}.
+     * 
+     * @param rs
+     * @param close
+     */
+    void detach(final ResultSet rs, final EarlyClose close) {
+
+        final Resources r = resources;
+        if (r != null) {
+            if (r.resultSetRegister.contains(rs)) {
+                close.registeredIn(this);
+            }
+            final ReadAheadSpliterator.Producer producer = r.forgetReadAhead(rs);
+            if (producer != null) {
+                close.readAhead(producer);
+            }
+        }
+        forget(rs);
+    }
+
+    /**
+     * Accounts the closes done by an {@link EarlyClose} as done by this handler.
+     * 
+     * @param close
+     */
+    void settle(final EarlyClose close) {
+
+        close.failures().addTo(resources != null ? resources.failures : null);
+    }
+
+    /**
+     * Remove a conexão do cache, evitando o fechamento automático da mesma.
+     * 
+     * @param con
+     */
+    public void ignore(final Connection con) {
+
+        checkNotReturned();
+
+        if (con != null && resources != null) {
+            if (resources.connectionRegister.remove(con)) {
+                resources.ignored++;
+                SqlEvents.ignored("Connection");
+            }
+            if (resources.earlyRelease != null) {
+                resources.earlyRelease.remove(con);
+            }
+        }
+    }
+
+    /**
+     * Closes registered Statements.
+     */
+    protected void closeStatements() {
+
+        if (resources != null) {
+            resources.closeStatements();
+        }
+    }
+
+    /**
+     * Closes registered ResultSets.
+     */
+    protected void closeResultSets() {
+
+        if (resources != null) {
+            resources.closeResultSets();
+        }
+    }
+
+    /**
+     * Closes registered Connections.
+     */
+    protected void closeConnections() {
+
+        if (resources != null) {
+            resources.closeConnections();
+        }
+    }
+
+    /**
+     * Resources registered by a handler. Is the action run by the {@link Cleaner} when the handler
+     * becomes phantom reachable, so it must never refer back to the handler. Is not expected that
+     * we have resources to close there. If it occurs, a developer forgot to call
+     * {@link SqlCloseableHandler#close()}.
+     */
+    static final class Resources implements Runnable {
+
+        /**
+         * Cache para manter os Statements registrados para a instância corrente. Os
+         * mesmos serão fechados na execução do método <code>close()</code>, do mais
+         * recente para o mais antigo.
+         */
+        final ResourceRegister<Statement> statementRegister = new ResourceRegister<Statement>();
+
+        /**
+         * Cache para manter os ResultSets registrados para a instância corrente. Os
+         * mesmos serão fechados na execução do método <code>close()</code>, do mais
+         * recente para o mais antigo.
+         */
+        final ResourceRegister<ResultSet> resultSetRegister = new ResourceRegister<ResultSet>();
+
+        /**
+         * Conexões registradas, fechadas depois dos ResultSets e Statements.
+         */
+        final ResourceRegister<Connection> connectionRegister = new ResourceRegister<Connection>();
+
+        /**
+         * PreparedStatements leased from a {@link StatementCache}, the owner of each entry, to be
+         * given back to it instead of closed.
+         */
+        final ResourceRegister<PreparedStatement> leaseRegister = new ResourceRegister<PreparedStatement>();
+
+        /**
+         * Close attempts and failures.
+         */
+        final CloseFailures failures = new CloseFailures();
+
+        /**
+         * Connections to release with their last registered Statement; never closed from here.
+         * Created on demand.
+         */
+        private ResourceRegister<Connection> earlyRelease;
+
+        /**
+         * PreparedStatements of {@link SqlCloseableHandler#prepare(Connection, String)}. Created
+         * on demand.
+         */
+        private PreparedStatementCache prepared;
+
+        /**
+         * SQL of the prepared statements, for {@link FetchSizeTuner}. Created on demand.
+         */
+        private Map<Statement, String> sqlTexts;
+
+        /**
+         * Producers of the read-ahead streams. Created on demand.
+         */
+        private List<ReadAheadSpliterator.Producer> readAheads;
+
+        /**
+         * {@link System#nanoTime()} of the first registration since the registers were last empty.
+         */
+        long openedAt;
+
+        /**
+         * Where the first registration was done, if sampled by {@link LeakDetector}.
+         */
+        Throwable site;
+
+        /**
+         * Whether the scope reported to {@link SqlMetrics} is running: from the first registration
+         * after a close to the next close.
+         */
+        boolean scoped;
+
+        long scopeStart;
+
+        /**
+         * Registrations removed by <code>ignore(...)</code> in the scope.
+         */
+        int ignored;
+
+        /**
+         * Called when the first resource is about to be registered into empty registers.
+         */
+        void open() {
+
+            openedAt = System.nanoTime();
+            site = LeakDetector.sample();
+            if (!scoped) {
+                scoped = true;
+                scopeStart = openedAt;
+                ignored = 0;
+                statementRegister.resetCounts();
+                resultSetRegister.resetCounts();
+                connectionRegister.resetCounts();
+                leaseRegister.resetCounts();
+            }
+        }
+
+        /**
+         * @return Resources registered.
+         */
+        int size() {
+
+            return statementRegister.size() + resultSetRegister.size() + connectionRegister.size()
+                    + leaseRegister.size();
+        }
+
+        boolean isEmpty() {
+
+            return statementRegister.isEmpty() && resultSetRegister.isEmpty() && connectionRegister.isEmpty()
+                    && leaseRegister.isEmpty();
+        }
+
+        PreparedStatementCache prepared() {
+
+            if (prepared == null) {
+                prepared = new PreparedStatementCache();
+            }
+            return prepared;
+        }
+
+        Map<Statement, String> sqlTexts() {
+
+            if (sqlTexts == null) {
+                sqlTexts = new IdentityHashMap<Statement, String>();
+            }
+            return sqlTexts;
+        }
+
+        /**
+         * Removes the Statement from the register and from the prepared statements cache.
+         * 
+         * @param st
+         */
+        boolean forget(final Statement st) {
+
+            final boolean registered = statementRegister.remove(st) | leaseRegister.remove(st);
+            if (prepared != null) {
+                prepared.remove(st);
+            }
+            if (sqlTexts != null) {
+                sqlTexts.remove(st);
+            }
+            return registered;
+        }
+
+        /**
+         * Gives a leased statement back to its cache, closing first the registered ResultSets it
+         * produced: the cache may hand it to another handler before they are closed.
+         * 
+         * @param st
+         * @return <code>false</code> if the statement was not leased.
+         */
+        boolean returnLease(final Statement st) {
+
+            for (int i = leaseRegister.size() - 1; i >= 0; i--) {
+                if (leaseRegister.get(i) == st) {
+                    final StatementCache cache = (StatementCache) leaseRegister.owner(i);
+                    leaseRegister.remove(st);
+                    resultSetRegister.closeOwnedBy(st, failures);
+                    cache.release((PreparedStatement) st);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gives every leased statement back to its cache.
+         */
+        void returnLeases() {
+
+            for (int i = leaseRegister.size() - 1; i >= 0; i--) {
+                final StatementCache cache = (StatementCache) leaseRegister.owner(i);
+                cache.release(leaseRegister.get(i));
+            }
+            leaseRegister.clear();
+        }
+
+        /**
+         * Cancels every registered and leased statement.
+         */
+        void cancel() {
+
+            for (int i = statementRegister.size() - 1; i >= 0; i--) {
+                cancel(statementRegister.get(i));
+            }
+            for (int i = leaseRegister.size() - 1; i >= 0; i--) {
+                cancel(leaseRegister.get(i));
+            }
+        }
+
+        private static void cancel(final Statement st) {
+
+            try {
+                st.cancel();
+            } catch (final SQLException e) {
+                // noop.
+            }
+        }
+
+        List<ReadAheadSpliterator.Producer> readAheads() {
+
+            if (readAheads == null) {
+                readAheads = new ArrayList<ReadAheadSpliterator.Producer>(2);
+            }
+            return readAheads;
+        }
+
+        /**
+         * Stops the producer reading the ResultSet, if any.
+         * 
+         * @param rs
+         */
+        void stopReadAhead(final ResultSet rs) {
+
+            final ReadAheadSpliterator.Producer producer = forgetReadAhead(rs);
+            if (producer != null) {
+                producer.stop(true);
+            }
+        }
+
+        /**
+         * Stops the producers reading ResultSets of the Statement.
+         * 
+         * @param st
+         */
+        void stopReadAheads(final Statement st) {
+
+            if (readAheads == null) {
+                return;
+            }
+            for (int i = readAheads.size() - 1; i >= 0; i--) {
+                final ReadAheadSpliterator.Producer producer = readAheads.get(i);
+                if (producer.statement == st) {
+                    readAheads.remove(i);
+                    producer.stop(true);
+                }
+            }
+        }
+
+        /**
+         * Moves to the EarlyClose what must be settled with the Statement, before it is forgotten.
+         * 
+         * @param st
+         * @param close
+         */
+        void detach(final Statement st, final EarlyClose close) {
+
+            if (readAheads != null) {
+                for (int i = readAheads.size() - 1; i >= 0; i--) {
+                    if (readAheads.get(i).statement == st) {
+                        close.readAhead(readAheads.remove(i));
+                    }
+                }
+            }
+
+            for (int i = leaseRegister.size() - 1; i >= 0; i--) {
+                if (leaseRegister.get(i) == st) {
+                    close.lease((StatementCache) leaseRegister.owner(i));
+                    break;
+                }
+            }
+
+            if (sqlTexts != null) {
+                close.sql(sqlTexts.get(st));
+            }
+            resultSetRegister.removeOwnedBy(st, close.owned());
+        }
+
+        /**
+         * Stops every producer.
+         */
+        void stopReadAheads() {
+
+            if (readAheads == null) {
+                return;
+            }
+            for (int i = readAheads.size() - 1; i >= 0; i--) {
+                readAheads.get(i).stop(true);
+            }
+            readAheads = null;
+        }
+
+        /**
+         * @param rs
+         * @return The producer reading the ResultSet, no longer registered, or <code>null</code>.
+         */
+        ReadAheadSpliterator.Producer forgetReadAhead(final ResultSet rs) {
+
+            if (readAheads == null) {
+                return null;
+            }
+            for (int i = readAheads.size() - 1; i >= 0; i--) {
+                if (readAheads.get(i).rs == rs) {
+                    return readAheads.remove(i);
+                }
+            }
+            return null;
+        }
+
+        ResourceRegister<Connection> earlyRelease() {
+
+            if (earlyRelease == null) {
+                earlyRelease = new ResourceRegister<Connection>();
+            }
+            return earlyRelease;
+        }
+
+        /**
+         * @param st
+         * @return The Connection of the Statement if it must be released with its last Statement,
+         *         otherwise <code>null</code>.
+         */
+        Connection releasedWith(final Statement st) {
+
+            if (earlyRelease == null || earlyRelease.isEmpty()) {
+                return null;
+            }
+
+            try {
+                final Connection con = st.getConnection();
+                return earlyRelease.contains(con) ? con : null;
+            } catch (final SQLException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Closes the Connection if none of the registered or leased Statements belongs to it.
+         * 
+         * @param con
+         */
+        void releaseIfUnused(final Connection con) {
+
+            if (uses(statementRegister, con) || uses(leaseRegister, con)) {
+                return;
+            }
+
+            earlyRelease.remove(con);
+            connectionRegister.remove(con);
+            CloseFailures.close(failures, con);
+        }
+
+        /**
+         * @param register
+         * @param con
+         * @return <code>true</code> if a Statement of the register belongs to the Connection, or
+         *         if it is unknown.
+         */
+        private static boolean uses(final ResourceRegister<? extends Statement> register, final Connection con) {
+
+            for (int i = register.size() - 1; i >= 0; i--) {
+                try {
+                    if (register.get(i).getConnection() == con) {
+                        return true;
+                    }
+                } catch (final SQLException e) {
+                    // unknown: keep the connection.
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Moves the registered resources to a new instance, not tracked by the {@link Cleaner}.
+         * 
+         * @return
+         */
+        Resources detach() {
+
+            final Resources detached = new Resources();
+            statementRegister.transferTo(detached.statementRegister);
+            resultSetRegister.transferTo(detached.resultSetRegister);
+            connectionRegister.transferTo(detached.connectionRegister);
+            leaseRegister.transferTo(detached.leaseRegister);
+            detached.readAheads = readAheads;
+            readAheads = null;
+            earlyRelease = null;
+            prepared = null;
+            sqlTexts = null;
+            detached.openedAt = openedAt;
+            site = null;
+            return detached;
+        }
+
+        @Override
+        public void run() {
+
+            if (!isEmpty()) {
+
+                LeakDetector.report(statementRegister.size() + leaseRegister.size(), resultSetRegister.size(),
+                        connectionRegister.size(), openedAt, site);
+                metrics.leaked(statementRegister.size() + leaseRegister.size(), resultSetRegister.size(),
+                        connectionRegister.size());
+                SqlEvents.leaked(statementRegister.size() + leaseRegister.size(), resultSetRegister.size(),
+                        connectionRegister.size(), System.nanoTime() - openedAt);
+                HandlerCensus.leaked(size());
+
+                try {
+                    closeResultSets();
+                } catch (final Exception e) {
+                    // noop.
+                }
+
+                try {
+                    closeStatements();
+                } catch (final Exception e) {
+                    // noop.
+                }
+
+                try {
+                    closeConnections();
+                } catch (final Exception e) {
+                    // noop.
+                }
+
+                failures.flush();
+            }
+        }
+
+        /**
+         * Closes the Statements (giving back the leased ones), then settles the ResultSets that were
+         * left to them by {@link #closeResultSets()}.
+         */
+        void closeStatements() {
+
+            prepared = null;
+            sqlTexts = null;
+            statementRegister.closeAll(failures);
+            returnLeases();
+            resultSetRegister.closeLeftByOwners(failures);
+        }
+
+        /**
+         * Closes the ResultSets, except the ones that will be closed by their registered Statement.
+         */
+        void closeResultSets() {
+
+            stopReadAheads();
+            resultSetRegister.closeAllNotOwnedBy(statementRegister, failures);
+        }
+
+        void closeConnections() {
+
+            connectionRegister.closeAll(failures);
+            earlyRelease = null;
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLInvalidAuthorizationSpecException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
+
+/**
+ * Category of a SQL failure, from the {@link SQLException} subclass thrown by the driver or, for
+ * drivers that only throw plain SQLExceptions, from the class (first two characters) of its
+ * SQLState.
+ */
+public enum SqlErrorCategory {
+
+    /**
+     * Deadlock, serialization failure or other rollback by the database (SQLState class 40): the
+     * same work may succeed if redone.
+     */
+    TRANSIENT(true),
+
+    /**
+     * Connection failure (SQLState class 08): the work may succeed on a new connection.
+     */
+    CONNECTION(true),
+
+    /**
+     * Timeout or cancellation (SQLState HYT00, HYT01, 57014).
+     */
+    TIMEOUT(false),
+
+    /**
+     * Constraint violation (SQLState class 23).
+     */
+    INTEGRITY(false),
+
+    /**
+     * Invalid SQL or unknown object (SQLState class 42).
+     */
+    SYNTAX(false),
+
+    /**
+     * Invalid data: truncation, conversion, division by zero (SQLState class 22).
+     */
+    DATA(false),
+
+    /**
+     * Invalid credentials (SQLState class 28).
+     */
+    AUTHORIZATION(false),
+
+    /**
+     * Anything else.
+     */
+    UNKNOWN(false);
+
+    private final boolean retryable;
+
+    private SqlErrorCategory(final boolean retryable) {
+        this.retryable = retryable;
+    }
+
+    /**
+     * @return <code>true</code> if redoing the work may succeed.
+     */
+    public boolean isRetryable() {
+
+        return retryable;
+    }
+
+    /**
+     * Classifies a failure by the first {@link SQLException} in its cause chain, or by the
+     * SQLState kept by a {@link JinahSqlException}.
+     *
+     * @param e
+     * @return
+     */
+    public static SqlErrorCategory of(final Throwable e) {
+
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                return of((SQLException) t);
+            }
+            if (t instanceof JinahSqlException && ((JinahSqlException) t).getSQLState() != null) {
+                return ofSQLState(((JinahSqlException) t).getSQLState());
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @param e
+     * @return
+     */
+    public static SqlErrorCategory of(final SQLException e) {
+
+        if (e instanceof SQLTransactionRollbackException) {
+            return TRANSIENT;
+        }
+        if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLRecoverableException) {
+            return CONNECTION;
+        }
+        if (e instanceof SQLTimeoutException) {
+            return TIMEOUT;
+        }
+        if (e instanceof SQLIntegrityConstraintViolationException) {
+            return INTEGRITY;
+        }
+        if (e instanceof SQLSyntaxErrorException) {
+            return SYNTAX;
+        }
+        if (e instanceof SQLDataException) {
+            return DATA;
+        }
+        if (e instanceof SQLInvalidAuthorizationSpecException) {
+            return AUTHORIZATION;
+        }
+
+        final SqlErrorCategory category = ofSQLState(e.getSQLState());
+        if (category == UNKNOWN && e instanceof SQLTransientException) {
+            return TRANSIENT;
+        }
+        return category;
+    }
+
+    /**
+     * @param sqlState
+     * @return
+     */
+    public static SqlErrorCategory ofSQLState(final String sqlState) {
+
+        if (sqlState == null || sqlState.length() < 2) {
+            return UNKNOWN;
+        }
+
+        if (sqlState.equals("HYT00") || sqlState.equals("HYT01") || sqlState.equals("57014")) {
+            return TIMEOUT;
+        }
+
+        switch (sqlState.substring(0, 2)) {
+        case "08":
+            return CONNECTION;
+        case "40":
+            return TRANSIENT;
+        case "23":
+            return INTEGRITY;
+        case "42":
+            return SYNTAX;
+        case "22":
+            return DATA;
+        case "28":
+            return AUTHORIZATION;
+        default:
+            return UNKNOWN;
+        }
+    }
+
+}
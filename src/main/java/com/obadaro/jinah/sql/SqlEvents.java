@@ -0,0 +1,319 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the handlers.
+ * <p>
+ * All events are disabled by default; enable them in the recording settings, with a custom
+ * <code>.jfc</code> file or, on JDK 17 and later,
+ * <code>-XX:StartFlightRecording:com.obadaro.jinah.sql.Close#enabled=true</code>. While disabled,
+ * the handlers only check a flag: no event is allocated.
+ * </p>
+ * <p>
+ * Nothing of <code>jdk.jfr</code> is referenced outside the {@link Jfr} holder, loaded only if the
+ * runtime has the <code>jdk.jfr</code> module: on a runtime without it (a jlinked image, for
+ * instance) the events are simply never emitted.
+ * </p>
+ */
+final class SqlEvents {
+
+    /**
+     * Whether the runtime has the <code>jdk.jfr</code> module.
+     */
+    private static final boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    /**
+     * A handler close being recorded: filled by the handler, then committed.
+     */
+    static final class Close {
+
+        int statements;
+
+        int resultSets;
+
+        int connections;
+
+        long lifetime;
+
+        private final Object event;
+
+        private Close(final Object event) {
+
+            this.event = event;
+        }
+
+        void commit() {
+
+            Jfr.commitClose(event, statements, resultSets, connections, lifetime);
+        }
+    }
+
+    /**
+     * An early close of a resource being recorded.
+     */
+    static final class ResourceClose {
+
+        private final Object event;
+
+        private ResourceClose(final Object event) {
+
+            this.event = event;
+        }
+
+        void commit() {
+
+            Jfr.commit(event);
+        }
+    }
+
+    private SqlEvents() {
+        // noop.
+    }
+
+    static void registered(final String resourceType, final String sql, final SqlCloseableHandler.Resources r) {
+
+        if (AVAILABLE) {
+            Jfr.registered(resourceType, sql, r);
+        }
+    }
+
+    static void ignored(final String resourceType) {
+
+        if (AVAILABLE) {
+            Jfr.ignored(resourceType);
+        }
+    }
+
+    /**
+     * @return A started Close event, or <code>null</code> if disabled.
+     */
+    static Close beginClose() {
+
+        if (!AVAILABLE) {
+            return null;
+        }
+        final Object event = Jfr.beginClose();
+        return event == null ? null : new Close(event);
+    }
+
+    /**
+     * @return A started ResourceClose event, or <code>null</code> if disabled.
+     */
+    static ResourceClose beginResourceClose(final String resourceType, final String sql) {
+
+        if (!AVAILABLE) {
+            return null;
+        }
+        final Object event = Jfr.beginResourceClose(resourceType, sql);
+        return event == null ? null : new ResourceClose(event);
+    }
+
+    static void leaked(final int statements, final int resultSets, final int connections, final long ageNanos) {
+
+        if (AVAILABLE) {
+            Jfr.leaked(statements, resultSets, connections, ageNanos);
+        }
+    }
+
+    /**
+     * Lazy holder of the event classes, loaded only when <code>jdk.jfr</code> is available.
+     */
+    private static final class Jfr {
+
+        @Name("com.obadaro.jinah.sql.Register")
+        @Label("JDBC Resource Registered")
+        @Category({ "JINAH", "SQL" })
+        @Enabled(false)
+        @StackTrace(false)
+        static final class RegisterEvent extends Event {
+
+            @Label("Resource Type")
+            String resourceType;
+
+            @Label("SQL Hash")
+            @Description("hashCode() of the SQL text, if known, otherwise 0")
+            int sqlHash;
+
+            @Label("Open Resources")
+            @Description("Resources registered in the handler, including this one")
+            int openResources;
+        }
+
+        @Name("com.obadaro.jinah.sql.Ignore")
+        @Label("JDBC Resource Ignored")
+        @Category({ "JINAH", "SQL" })
+        @Enabled(false)
+        static final class IgnoreEvent extends Event {
+
+            @Label("Resource Type")
+            String resourceType;
+        }
+
+        @Name("com.obadaro.jinah.sql.Close")
+        @Label("Handler Close")
+        @Category({ "JINAH", "SQL" })
+        @Enabled(false)
+        @StackTrace(false)
+        static final class CloseEvent extends Event {
+
+            @Label("Statements")
+            int statements;
+
+            @Label("Result Sets")
+            int resultSets;
+
+            @Label("Connections")
+            int connections;
+
+            @Label("Lifetime")
+            @Description("Time since the first registration of the handler")
+            @Timespan
+            long lifetime;
+        }
+
+        @Name("com.obadaro.jinah.sql.ResourceClose")
+        @Label("JDBC Resource Closed Early")
+        @Category({ "JINAH", "SQL" })
+        @Enabled(false)
+        @StackTrace(false)
+        static final class ResourceCloseEvent extends Event {
+
+            @Label("Resource Type")
+            String resourceType;
+
+            @Label("SQL Hash")
+            int sqlHash;
+        }
+
+        @Name("com.obadaro.jinah.sql.Leak")
+        @Label("Handler Leaked")
+        @Description("Resources of a handler that was never closed, closed by the leak reclaimer")
+        @Category({ "JINAH", "SQL" })
+        @Enabled(false)
+        @StackTrace(false)
+        static final class LeakEvent extends Event {
+
+            @Label("Statements")
+            int statements;
+
+            @Label("Result Sets")
+            int resultSets;
+
+            @Label("Connections")
+            int connections;
+
+            @Label("Age")
+            @Timespan
+            long age;
+        }
+
+        private static final EventType REGISTER = EventType.getEventType(RegisterEvent.class);
+
+        private static final EventType IGNORE = EventType.getEventType(IgnoreEvent.class);
+
+        private static final EventType CLOSE = EventType.getEventType(CloseEvent.class);
+
+        private static final EventType RESOURCE_CLOSE = EventType.getEventType(ResourceCloseEvent.class);
+
+        private static final EventType LEAK = EventType.getEventType(LeakEvent.class);
+
+        static void registered(final String resourceType, final String sql, final SqlCloseableHandler.Resources r) {
+
+            if (REGISTER.isEnabled()) {
+                final RegisterEvent event = new RegisterEvent();
+                event.resourceType = resourceType;
+                event.sqlHash = sql == null ? 0 : sql.hashCode();
+                event.openResources = r.size();
+                event.commit();
+            }
+        }
+
+        static void ignored(final String resourceType) {
+
+            if (IGNORE.isEnabled()) {
+                final IgnoreEvent event = new IgnoreEvent();
+                event.resourceType = resourceType;
+                event.commit();
+            }
+        }
+
+        static Object beginClose() {
+
+            if (!CLOSE.isEnabled()) {
+                return null;
+            }
+            final CloseEvent event = new CloseEvent();
+            event.begin();
+            return event;
+        }
+
+        static void commitClose(final Object started, final int statements, final int resultSets,
+                final int connections, final long lifetime) {
+
+            final CloseEvent event = (CloseEvent) started;
+            event.statements = statements;
+            event.resultSets = resultSets;
+            event.connections = connections;
+            event.lifetime = lifetime;
+            event.commit();
+        }
+
+        static Object beginResourceClose(final String resourceType, final String sql) {
+
+            if (!RESOURCE_CLOSE.isEnabled()) {
+                return null;
+            }
+            final ResourceCloseEvent event = new ResourceCloseEvent();
+            event.resourceType = resourceType;
+            event.sqlHash = sql == null ? 0 : sql.hashCode();
+            event.begin();
+            return event;
+        }
+
+        static void commit(final Object started) {
+
+            ((Event) started).commit();
+        }
+
+        static void leaked(final int statements, final int resultSets, final int connections, final long ageNanos) {
+
+            if (LEAK.isEnabled()) {
+                final LeakEvent event = new LeakEvent();
+                event.statements = statements;
+                event.resultSets = resultSets;
+                event.connections = connections;
+                event.age = ageNanos;
+                event.commit();
+            }
+        }
+    }
+
+}
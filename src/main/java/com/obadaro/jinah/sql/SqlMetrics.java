@@ -0,0 +1,116 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+/**
+ * Receives the lifecycle events of the handlers, installed with
+ * {@link SqlCloseableHandler#setMetrics(SqlMetrics)}.
+ * <p>
+ * Registrations are not reported one by one: each handler counts them in plain fields and reports
+ * the counts of its scope (from the first registration to <code>close()</code>) when it is closed,
+ * so the registration path never touches shared state. Every handler opened is reported closed by
+ * its first <code>close()</code>, whether it registered anything or not: opened minus closed
+ * minus leaked is the number of handlers outstanding (an empty handler that is never closed is
+ * left counted as open). All methods do nothing by default; an
+ * implementation overrides what it records, and must be thread-safe.
+ * </p>
+ * <p>
+ * {@link DefaultSqlMetrics} is a ready implementation, installed at startup with
+ * <code>-Djinah.sql.metrics=true</code>.
+ * </p>
+ */
+public interface SqlMetrics {
+
+    /**
+     * Records nothing. The default.
+     */
+    SqlMetrics NOOP = new SqlMetrics() {
+        // noop.
+    };
+
+    /**
+     * A handler was created, or taken from the pool.
+     */
+    default void handlerOpened() {
+        // noop.
+    }
+
+    /**
+     * A handler was closed for the first time since it was created, or taken from the pool.
+     */
+    default void handlerClosed() {
+        // noop.
+    }
+
+    /**
+     * A handler that registered resources was closed, ending their scope.
+     *
+     * @param lifetimeNanos
+     *            Time since its first registration.
+     * @param closeNanos
+     *            Time spent in <code>close()</code>.
+     */
+    default void scopeClosed(final long lifetimeNanos, final long closeNanos) {
+        // noop.
+    }
+
+    /**
+     * Resources registered during the scope of a handler, reported when it is closed.
+     *
+     * @param statements
+     * @param resultSets
+     * @param connections
+     */
+    default void registered(final int statements, final int resultSets, final int connections) {
+        // noop.
+    }
+
+    /**
+     * Most resources registered at the same time in a handler, reported when it is closed.
+     *
+     * @param statements
+     * @param resultSets
+     */
+    default void peakOpen(final int statements, final int resultSets) {
+        // noop.
+    }
+
+    /**
+     * Resources removed with <code>ignore(...)</code> during the scope of a handler, reported when
+     * it is closed.
+     *
+     * @param resources
+     */
+    default void ignored(final int resources) {
+        // noop.
+    }
+
+    /**
+     * Resources of a handler that was never closed, closed by the leak reclaimer.
+     *
+     * @param statements
+     * @param resultSets
+     * @param connections
+     */
+    default void leaked(final int statements, final int resultSets, final int connections) {
+        // noop.
+    }
+
+}
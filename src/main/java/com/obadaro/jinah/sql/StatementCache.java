@@ -0,0 +1,255 @@
+/*
+ * JINAH Project - Java Is Not A Hammer
+ * http://obadaro.com/jinah
+ *
+ * Copyright (C) 2010-2012 Roberto Badaro
+ * and individual contributors by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.obadaro.jinah.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.obadaro.jinah.common.util.Preconditions;
+
+/**
+ * LRU cache of PreparedStatements bound to a Connection, shared by the handlers that run on that
+ * Connection: a short handler scope prepares its SQL with
+ * {@link SqlCloseableHandler#prepare(StatementCache, String)} and, instead of closing the
+ * statement, its <code>close()</code> gives it back here.
+ * <p>
+ * The cache has the lifetime of the Connection, typically kept next to the physical connection by
+ * the pool, and must be closed before it. At most <code>maxSize</code> statements are kept; the
+ * least recently used one is closed when a new one is prepared beyond that. A statement that is in
+ * use by a handler is never handed to another one: a second concurrent lease of the same SQL gets
+ * a one-off statement, closed when it is released. The closes done by the cache are counted in
+ * the process-wide totals of {@link CloseFailures}.
+ * </p>
+ * <p>
+ * A statement given back has its query timeout restored to the one it was prepared with, so the
+ * timeout set by a handler deadline (see {@link SqlCloseableHandler#setDeadline(long,
+ * java.util.concurrent.TimeUnit)}) does not follow the statement into the next lease.
+ * </p>
+ */
+public class StatementCache implements AutoCloseable {
+
+    private static final class Cached {
+
+        final PreparedStatement ps;
+
+        /**
+         * Query timeout of the statement when prepared, restored when it is given back.
+         */
+        final int queryTimeout;
+
+        boolean inUse;
+
+        boolean evicted;
+
+        Cached(final PreparedStatement ps) {
+            this.ps = ps;
+            this.queryTimeout = queryTimeout(ps);
+        }
+    }
+
+    private final Connection con;
+
+    private final int maxSize;
+
+    private final LinkedHashMap<String, Cached> entries;
+
+    /**
+     * Cached statements currently leased, by identity.
+     */
+    private final Map<PreparedStatement, Cached> leased = new IdentityHashMap<PreparedStatement, Cached>();
+
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param con
+     *            Connection of the cached statements.
+     * @param maxSize
+     *            Maximum number of cached statements.
+     */
+    public StatementCache(final Connection con, final int maxSize) {
+
+        Preconditions.checkArgument(con != null, "con");
+        Preconditions.checkArgument(maxSize > 0, "maxSize");
+
+        this.con = con;
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Cached> eldest) {
+
+                if (size() <= StatementCache.this.maxSize) {
+                    return false;
+                }
+
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return Connection of the cached statements.
+     */
+    public Connection getConnection() {
+
+        return con;
+    }
+
+    /**
+     * Leases the statement for the SQL, preparing it if it is not cached (or is in use). Its
+     * parameters are cleared. Must be given back with {@link #release(PreparedStatement)}.
+     *
+     * @param sql
+     * @return
+     */
+    public synchronized PreparedStatement acquire(final String sql) {
+
+        Preconditions.checkArgument(sql != null, "sql");
+        if (closed) {
+            throw new IllegalStateException("StatementCache is closed.");
+        }
+
+        final Cached cached = entries.get(sql);
+        if (cached != null && !cached.inUse) {
+            try {
+                cached.ps.clearParameters();
+                cached.inUse = true;
+                leased.put(cached.ps, cached);
+                return cached.ps;
+            } catch (final SQLException e) {
+                // unusable: drop it and prepare again.
+                entries.remove(sql);
+                CloseFailures.close(null, cached.ps);
+            }
+        }
+
+        final PreparedStatement ps;
+        try {
+            ps = con.prepareStatement(sql);
+        } catch (final SQLException e) {
+            throw new JinahSqlException("I can't prepare the statement.", e);
+        }
+
+        if (cached == null || !cached.inUse) {
+            final Cached entry = new Cached(ps);
+            entry.inUse = true;
+            leased.put(ps, entry);
+            entries.put(sql, entry);
+        }
+
+        return ps;
+    }
+
+    /**
+     * Gives back a leased statement. It stays cached, with its original query timeout, unless it
+     * was evicted meanwhile, the cache was closed, or it was a one-off statement, in which cases it
+     * is closed.
+     *
+     * @param ps
+     */
+    public synchronized void release(final PreparedStatement ps) {
+
+        if (ps == null) {
+            return;
+        }
+
+        final Cached entry = leased.remove(ps);
+        if (entry == null || entry.evicted || closed) {
+            CloseFailures.close(null, ps);
+            return;
+        }
+
+        try {
+            if (ps.getQueryTimeout() != entry.queryTimeout) {
+                ps.setQueryTimeout(entry.queryTimeout);
+            }
+        } catch (final SQLException e) {
+            // unusable: drop it.
+            entries.values().remove(entry);
+            CloseFailures.close(null, ps);
+            return;
+        }
+
+        entry.inUse = false;
+    }
+
+    private static int queryTimeout(final PreparedStatement ps) {
+
+        try {
+            return ps.getQueryTimeout();
+        } catch (final SQLException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return Number of cached statements.
+     */
+    public synchronized int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * Closes every cached statement not in use; the ones in use are closed when released.
+     */
+    @Override
+    public void close() {
+
+        final List<PreparedStatement> idle = new ArrayList<PreparedStatement>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (final Cached entry : entries.values()) {
+                if (!entry.inUse) {
+                    idle.add(entry.ps);
+                }
+            }
+            entries.clear();
+        }
+
+        for (final PreparedStatement ps : idle) {
+            CloseFailures.close(null, ps);
+        }
+    }
+
+    private void evict(final Cached entry) {
+
+        if (entry.inUse) {
+            entry.evicted = true;
+        } else {
+            CloseFailures.close(null, entry.ps);
+        }
+    }
+
+}